@@ -181,6 +181,10 @@ public class Script extends ScriptMetadata {
 						if (propertyValue.equals(RUNATEND)) {
 							tmp.hasRightRunEnd(true);
 						}
+						if (propertyValue.equals(RUNATIDLE)) {
+							tmp.hasRightRunEnd(true);
+							tmp.setPriority(PRIORITY_DEFERRED);
+						}
 					} else if (propertyName.equals("grant")) {
 						//CMN.debug("grant::", propertyValue, "GM_xmlhttpRequest".equals(propertyValue));
 						int length = propertyValue.length();
@@ -229,6 +233,11 @@ public class Script extends ScriptMetadata {
 										allRightsLookup.put("GM_knock".substring(3), cc++);
 										allRightsLookup.put("GM_setClipboard".substring(3), cc++);
 										allRightsLookup.put("GM_getClipboard".substring(3), cc++);
+										
+										// the batch variants share the rights of the single-value calls
+										allRightsLookup.put("GM_getValues".substring(3), allRightsLookup.get("getValue"));
+										allRightsLookup.put("GM_setValues".substring(3), allRightsLookup.get("setValue"));
+										allRightsLookup.put("GM_deleteValues".substring(3), allRightsLookup.get("deleteValue"));
 									}
 								}
 								Integer flagPos = allRightsLookup.get(sb.toString());
@@ -265,7 +274,7 @@ public class Script extends ScriptMetadata {
 							return null;
 						}
 						String required = resourceMatcher.group(1);
-						ScriptResource resource = new ScriptResource(required, DownloadHelper.resolveURL(resourceMatcher.group(2), url), null);
+						ScriptResource resource = new ScriptResource(required, DownloadHelper.resolveURL(resourceMatcher.group(2), url), (byte[]) null);
 						if (!resources.contains(resource)) {
 							resources.add(resource);
 						}
@@ -300,7 +309,7 @@ public class Script extends ScriptMetadata {
 		ScriptResource[] resourceArr = null;
 		if (requires.size() > 0) {
 			for (ScriptRequire req : requires) {
-				if (!scriptStore.scriptHasRequire(new ScriptId(name, namespace), req.getUrl())) {
+				if (!scriptStore.isRequireKnown(req.getUrl())) {
 					//CMN.debug("下载::脚本::", req.getUrl());
 					req.setContent(DownloadHelper.downloadScript(req.getUrl()));
 				}
@@ -32,7 +32,14 @@ import at.pardus.android.webview.gm.util.CriterionMatcher;
  * @see <a href="http://wiki.greasespot.net/Metadata_Block">Metadata Block</a>
  */
 public class ScriptCriteria extends ScriptId {
+	/** Evaluated as soon as the page allows it (document-start or document-end). */
+	public static final int PRIORITY_CRITICAL = 0;
+	/** Evaluated after the first visual commit, one script per idle slice. */
+	public static final int PRIORITY_DEFERRED = 1;
+	
 	private String[] match;
+	/** Types and prepared patterns of match, built on the first testUrl. */
+	private volatile Object[] matchers;
 	public String[] connect;
 	public String[] connected;
 	public String version;
@@ -42,6 +49,7 @@ public class ScriptCriteria extends ScriptId {
 	public int runtimeId;
 	public String hash;
 	public long rowID;
+	public ScriptStats stats = new ScriptStats();
 	
 	public ScriptCriteria(String name, String namespace, String[] match) {
 		super(name, namespace);
@@ -70,21 +78,25 @@ public class ScriptCriteria extends ScriptId {
 	public boolean testUrl(String url) {
 		boolean matched = false;
 		try {
-			if (match != null) {
+			Object[] matchers = getMatchers();
+			if (matchers != null) {
 				//CMN.debug("match::", match);
 				CMN.debug(match);
-				for (int i = 0; i < match.length - 1; i += 2) {
+				url = url.toLowerCase();
+				for (int i = 0; i < matchers.length - 1; i += 2) {
 					try {
-						String type = match[i];
-						String pattern = match[i + 1];
-						//CMN.debug("testUrl::", type, pattern, CriterionMatcher.test(pattern, url));
+						Object type = matchers[i];
+						Object pattern = matchers[i + 1];
+						if (pattern == null) {
+							continue;
+						}
 						if ("=".equals(type) || "+".equals(type)) {
 							if (!matched) {
-								matched = CriterionMatcher.test(pattern, url, "=".equals(type));
+								matched = CriterionMatcher.testPrepared(pattern, url, "=".equals(type));
 							}
 						} else {
 							//if ("!".equals(type))
-							if (CriterionMatcher.test(pattern, url, false)) {
+							if (CriterionMatcher.testPrepared(pattern, url, false)) {
 								return false;
 							}
 						}
@@ -99,12 +111,31 @@ public class ScriptCriteria extends ScriptId {
 		return matched;
 	}
 
+	/**
+	 * Prepares the patterns on first use rather than when loaded, so that
+	 * reading the criteria of all scripts at startup costs only their bytes.
+	 */
+	private Object[] getMatchers() {
+		Object[] matchers = this.matchers;
+		String[] match = this.match;
+		if (matchers == null && match != null) {
+			matchers = new Object[match.length];
+			for (int i = 0; i < match.length - 1; i += 2) {
+				matchers[i] = match[i];
+				matchers[i + 1] = CriterionMatcher.prepare(match[i + 1], "=".equals(match[i]));
+			}
+			this.matchers = matchers;
+		}
+		return matchers;
+	}
+
 	public String[] getMatch() {
 		return match;
 	}
 	
 	public void setMatch(String[] match) {
 		this.match = match;
+		this.matchers = null;
 	}
 	
 	public boolean isEnabled() {
@@ -204,19 +235,59 @@ public class ScriptCriteria extends ScriptId {
 	@Metaline(flagPos=45) public boolean hasRightSetTmp(){ rights|=Z; throw new RuntimeException(); }
 	@Metaline(flagPos=46) public void hasRightGetTmp(boolean val){ rights|=Z; throw new RuntimeException(); }
 	@Metaline(flagPos=46) public boolean hasRightGetTmp(){ rights|=Z; throw new RuntimeException(); }
+	/** The priority declared by @run-at, see {@link #PRIORITY_CRITICAL}, {@link #PRIORITY_DEFERRED} */
+	@Metaline(flagPos=47, flagSize=2) public void setPriority(int val){ rights|=Z; throw new RuntimeException(); }
+	@Metaline(flagPos=47, flagSize=2) public int getPriority(){ rights|=Z; throw new RuntimeException(); }
+	/** Deferred by its telemetry, until updated or enabled again */
+	@Metaline(flagPos=49) public void isDemoted(boolean val){ rights|=Z; throw new RuntimeException(); }
+	@Metaline(flagPos=49) public boolean isDemoted(){ rights|=Z; throw new RuntimeException(); }
+
+	/**
+	 * @return the priority to inject with: the declared one, or
+	 *         {@link #PRIORITY_DEFERRED} while demoted
+	 */
+	public int getRunPriority() {
+		return isDemoted() ? PRIORITY_DEFERRED : getPriority();
+	}
+
 
+	/**
+	 * @return a copy to change and register in place of this one, keeping
+	 *         its runtime fields
+	 */
+	public ScriptCriteria copy() {
+		ScriptCriteria copy = new ScriptCriteria(name, namespace, version, match, connect, enabled, rights);
+		copy.rowID = rowID;
+		copy.matchers = matchers;
+		copy.keepRuntimeOf(this);
+		return copy;
+	}
+	
+	/**
+	 * Takes over the runtime fields of the criteria this one replaces in the
+	 * registry: the runtime id, the secret and the telemetry. The telemetry
+	 * starts afresh if an update or re-enable cleared a demotion.
+	 */
+	public void keepRuntimeOf(ScriptCriteria previous) {
+		runtimeId = previous.runtimeId;
+		secret = previous.secret;
+		hash = previous.hash;
+		connected = previous.connected;
+		stats = previous.isDemoted() && !isDemoted() ? new ScriptStats() : previous.stats;
+	}
 
 	public void release() {
 		this.name = null;
 		this.namespace = null;
 		this.secret = null;
 		this.match = null;
+		this.matchers = null;
 		this.hash = null;
 		this.enabled = false;
 		this.rights = 0;
 	}
 	
-	public void register() {
+	public synchronized void register() {
 		if (secret==null) {
 			hash = (name+namespace).replaceAll("[^0-9a-zA-Z_]", "");
 			secret = UUID.randomUUID().toString();
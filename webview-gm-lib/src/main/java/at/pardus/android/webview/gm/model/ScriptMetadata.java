@@ -27,6 +27,8 @@ public class ScriptMetadata extends ScriptCriteria {
 
 	public static final String RUNATEND = "document-end";
 
+	public static final String RUNATIDLE = "document-idle";
+
 	private String description;
 	public String nameLocal;
 
@@ -27,6 +27,7 @@ public class ScriptRequire {
 
 	private String url;
 	private String content;
+	private String hash;
 
 	public ScriptRequire(String url, String content) {
 		this.url = url;
@@ -37,6 +38,10 @@ public class ScriptRequire {
 		return this.url;
 	}
 
+	/**
+	 * @return the content, null if not downloaded or, for requires loaded
+	 *         from the store, too large to be loaded along with the script
+	 */
 	public String getContent() {
 		return this.content;
 	}
@@ -44,6 +49,17 @@ public class ScriptRequire {
 	public void setContent(String content) {
 		this.content = content;
 	}
+
+	/**
+	 * @return the hash the content is stored under, null if not stored yet
+	 */
+	public String getHash() {
+		return this.hash;
+	}
+
+	public void setHash(String hash) {
+		this.hash = hash;
+	}
 	
 	@Override
 	public boolean equals(Object o) {
@@ -20,7 +20,12 @@ import android.text.TextUtils;
 import android.util.Base64;
 import android.webkit.MimeTypeMap;
 
-import java.io.UnsupportedEncodingException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.util.Objects;
 
 /**
@@ -29,9 +34,19 @@ import java.util.Objects;
  * @see <a href="http://wiki.greasespot.net/Metadata_Block">Metadata Block</a>
  */
 public class ScriptResource {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/** Files at least this large are memory-mapped instead of read. */
+	private static final int MAP_THRESHOLD = 64 * 1024;
+
+	/** Bytes encoded per step, a multiple of 3 so that no padding is inserted. */
+	private static final int BASE64_CHUNK = 3 * 16 * 1024;
+
 	private String name;
 	private String url;
 	private byte[] data;
+	private File file;
 
 	public ScriptResource(String name, String url, byte[] data) {
 		this.name = name;
@@ -39,6 +54,15 @@ public class ScriptResource {
 		this.data = data;
 	}
 
+	/**
+	 * Creates a resource whose data is read from a file on demand.
+	 */
+	public ScriptResource(String name, String url, File file) {
+		this.name = name;
+		this.url = url;
+		this.file = file;
+	}
+
 	public String getName() {
 		return this.name;
 	}
@@ -47,12 +71,67 @@ public class ScriptResource {
 		return this.url;
 	}
 
+	/**
+	 * @return the data, read in full if it is backed by a file
+	 */
 	public byte[] getData() {
+		if (this.data == null && this.file != null) {
+			ByteBuffer buffer = map();
+			if (buffer != null) {
+				byte[] data = new byte[buffer.remaining()];
+				buffer.get(data);
+				return data;
+			}
+		}
 		return this.data;
 	}
 
 	public void setData(byte[] data) {
 		this.data = data;
+		this.file = null;
+	}
+
+	/**
+	 * @return the file backing the data, null if the data is held in memory
+	 */
+	public File getFile() {
+		return this.file;
+	}
+
+	/**
+	 * Gets the data without copying it to the heap if it is backed by a
+	 * large file.
+	 *
+	 * @return a read-only buffer of the data, null if there is none or the
+	 *         file cannot be read
+	 */
+	public ByteBuffer map() {
+		if (this.file == null) {
+			return this.data == null ? null : ByteBuffer.wrap(this.data).asReadOnlyBuffer();
+		}
+		try {
+			RandomAccessFile raf = new RandomAccessFile(this.file, "r");
+			try {
+				FileChannel channel = raf.getChannel();
+				long size = channel.size();
+				if (size >= MAP_THRESHOLD) {
+					// the mapping stays valid after the channel is closed
+					return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+				}
+				ByteBuffer buffer = ByteBuffer.allocate((int) size);
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer) < 0) {
+						break;
+					}
+				}
+				buffer.flip();
+				return buffer;
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			return null;
+		}
 	}
 
 	/**
@@ -61,7 +140,44 @@ public class ScriptResource {
 	 * @return A base64 encoded String representing this class' 'data' variable
 	 */
 	public String getDataBase64() {
-		return Base64.encodeToString(this.data, Base64.DEFAULT);
+		ByteBuffer buffer = map();
+		if (buffer == null) {
+			return "";
+		}
+		return appendBase64(buffer, new StringBuilder(buffer.remaining() / 3 * 4 + 4)).toString();
+	}
+
+	/**
+	 * Encodes the buffer in chunks so that mapped data is never copied as a
+	 * whole.
+	 */
+	private static StringBuilder appendBase64(ByteBuffer buffer, StringBuilder sb) {
+		if (buffer.hasArray()) {
+			return sb.append(Base64.encodeToString(buffer.array(), buffer.arrayOffset()
+					+ buffer.position(), buffer.remaining(), Base64.NO_WRAP));
+		}
+		byte[] chunk = new byte[Math.min(BASE64_CHUNK, buffer.remaining())];
+		while (buffer.hasRemaining()) {
+			int length = Math.min(chunk.length, buffer.remaining());
+			buffer.get(chunk, 0, length);
+			sb.append(Base64.encodeToString(chunk, 0, length, Base64.NO_WRAP));
+		}
+		return sb;
+	}
+
+	/**
+	 * Guesses the MIME type of the data from the extension of its URL.
+	 *
+	 * @return the MIME type, application/octet-stream if unknown
+	 */
+	public String getMimeType() {
+		String extension = MimeTypeMap.getFileExtensionFromUrl(this.url);
+		String mimeType = null;
+		if (!TextUtils.isEmpty(extension)) {
+			mimeType = MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension);
+		}
+		// Fallback to "bytes" if we can't determine the actual mimetype.
+		return mimeType == null ? "application/octet-stream" : mimeType;
 	}
 
 	/**
@@ -73,16 +189,9 @@ public class ScriptResource {
 	 * @see <tt><a href="https://developer.mozilla.org/en-US/docs/Web/HTTP/data_URIs">Data URIs</a></tt>
 	 */
 	public String getJavascriptUrl() {
-		String extension = MimeTypeMap.getFileExtensionFromUrl(this.url);
-		String mimeType;
-		// Fallback to "bytes" if we can't determine the actual mimetype.
-		if (extension == null || TextUtils.isEmpty(extension)) {
-			mimeType = "application/octet-stream";
-		} else {
-			MimeTypeMap mimeTypeMap = MimeTypeMap.getSingleton();
-			mimeType = mimeTypeMap.getMimeTypeFromExtension(extension);
-		}
-		return "data:" + mimeType + ";base64," + getDataBase64();
+		StringBuilder sb = new StringBuilder("data:").append(getMimeType()).append(";base64,");
+		ByteBuffer buffer = map();
+		return buffer == null ? sb.toString() : appendBase64(buffer, sb).toString();
 	}
 
 	/**
@@ -92,11 +201,11 @@ public class ScriptResource {
 	 * @return A UTF-8 String representing this class' 'data' variable
 	 */
 	public String getJavascriptString() {
-		try {
-			return new String(this.data, "UTF-8");
-		} catch (UnsupportedEncodingException e) {
+		ByteBuffer buffer = map();
+		if (buffer == null) {
 			return "";
 		}
+		return UTF_8.decode(buffer).toString();
 	}
 	
 	@Override
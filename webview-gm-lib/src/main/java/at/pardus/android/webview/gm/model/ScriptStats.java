@@ -0,0 +1,161 @@
+/*
+ *    Copyright 2012 Werner Bayer
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package at.pardus.android.webview.gm.model;
+
+import java.util.Arrays;
+
+/**
+ * Execution telemetry of a user script, aggregated over all pages it ran on
+ * since the script was registered.
+ */
+public class ScriptStats {
+
+	/** Upper bounds (exclusive, in ms) of the buckets of the time histogram. */
+	public static final int[] BUCKETS = { 4, 16, 50, 100, 250, 1000 };
+
+	/** Synchronous runs taking at least this many ms count as long tasks. */
+	public static final int LONG_TASK = 50;
+
+	/** Minimum number of runs before a script is judged to block routinely. */
+	private static final int MIN_RUNS = 5;
+
+	/**
+	 * Minimum number of reports, i.e. pages, before a script is judged to
+	 * block routinely, so that one report cannot decide it.
+	 */
+	private static final int MIN_REPORTS = 3;
+
+	/** Runs taken from a single report at most. */
+	public static final int MAX_REPORT_RUNS = 64;
+
+	private final int[] histogram = new int[BUCKETS.length + 1];
+
+	private int runs;
+
+	private int reports;
+
+	private long totalTime;
+
+	private long maxTime;
+
+	private int errors;
+
+	private int longTasks;
+
+	private int styleRules;
+
+	private long styleBytes;
+
+	/**
+	 * Records one synchronous run of the script.
+	 *
+	 * @param time
+	 *            the execution time in ms
+	 * @param error
+	 *            true if the run ended with an uncaught error
+	 */
+	public synchronized void addRun(long time, boolean error) {
+		int bucket = 0;
+		while (bucket < BUCKETS.length && time >= BUCKETS[bucket]) {
+			bucket++;
+		}
+		histogram[bucket]++;
+		runs++;
+		totalTime += time;
+		if (time > maxTime) {
+			maxTime = time;
+		}
+		if (error) {
+			errors++;
+		}
+		if (time >= LONG_TASK) {
+			longTasks++;
+		}
+	}
+
+	/**
+	 * Records that the runs of one more page were reported.
+	 */
+	public synchronized void addReport() {
+		reports++;
+	}
+
+	/**
+	 * Records what the script injected through GM_addStyle.
+	 *
+	 * @param rules
+	 *            the number of CSS rules
+	 * @param bytes
+	 *            the length of the CSS text
+	 */
+	public synchronized void addStyles(int rules, long bytes) {
+		styleRules += rules;
+		styleBytes += bytes;
+	}
+
+	/**
+	 * @return true if at least half of the runs, reported from several pages,
+	 *         were long tasks
+	 */
+	public synchronized boolean blocksRoutinely() {
+		return runs >= MIN_RUNS && reports >= MIN_REPORTS && longTasks * 2 >= runs;
+	}
+
+	/**
+	 * @return the number of runs per bucket of {@link #BUCKETS}, the last one
+	 *         counting runs of {@link #BUCKETS}' last bound or more
+	 */
+	public synchronized int[] getHistogram() {
+		return histogram.clone();
+	}
+
+	public synchronized int getRuns() {
+		return runs;
+	}
+
+	public synchronized long getTotalTime() {
+		return totalTime;
+	}
+
+	public synchronized long getMaxTime() {
+		return maxTime;
+	}
+
+	public synchronized int getErrors() {
+		return errors;
+	}
+
+	public synchronized int getLongTasks() {
+		return longTasks;
+	}
+
+	public synchronized int getStyleRules() {
+		return styleRules;
+	}
+
+	public synchronized long getStyleBytes() {
+		return styleBytes;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "runs=" + runs + " total=" + totalTime + "ms max=" + maxTime
+				+ "ms errors=" + errors + " longTasks=" + longTasks + " "
+				+ Arrays.toString(histogram) + " styles=" + styleRules + "/"
+				+ styleBytes;
+	}
+}
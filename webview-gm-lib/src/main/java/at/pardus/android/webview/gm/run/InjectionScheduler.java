@@ -0,0 +1,341 @@
+/*
+ *    Copyright 2012 Werner Bayer
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package at.pardus.android.webview.gm.run;
+
+import android.os.Build;
+import android.webkit.WebView;
+
+import java.util.ArrayList;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
+
+import at.pardus.android.webview.gm.model.ScriptCriteria;
+
+/**
+ * Schedules the evaluation of user scripts with a deferred priority.
+ *
+ * Critical scripts are evaluated by WebViewClientGm right away. Deferred ones
+ * are queued at document-end and evaluated one per idle slice once the page
+ * had its first visual commit, so that a heavy cosmetic script does not delay
+ * interactivity. All methods except {@link #onIdle} run on the UI thread.
+ *
+ * While suspended (the WebView is a hidden tab) document-end scripts of any
+ * priority are held back until the view becomes visible again; whatever is
+ * still queued when the next page starts is dropped. The counters and the
+ * {@link Observer} tell how much work was deferred that way or avoided.
+ */
+public class InjectionScheduler {
+
+	/** A script was queued for an idle slice. */
+	public static final int EVENT_DEFERRED = 0;
+	/** A script was held back because the view is suspended. */
+	public static final int EVENT_SUSPENDED = 1;
+	/** A queued script was evaluated. */
+	public static final int EVENT_RUN = 2;
+	/** A queued script was dropped because a new page started. */
+	public static final int EVENT_DROPPED = 3;
+
+	/**
+	 * Receives the events of the scheduler, on the UI thread.
+	 */
+	public interface Observer {
+		void onSchedulerEvent(int event, ScriptCriteria key);
+	}
+
+	/**
+	 * Time in ms to wait for an idle slice reported from the page before the
+	 * next script is evaluated anyway.
+	 */
+	private static final int IDLE_TIMEOUT = 1000;
+
+	private final WebViewClientGm client;
+
+	private final ArrayList<Pending> queue = new ArrayList<Pending>();
+
+	private WebView view;
+
+	private int generation;
+
+	private boolean committed;
+
+	private boolean finished;
+
+	private boolean waiting;
+
+	/**
+	 * The token of the idle slice requested last, good for one report. Not
+	 * the client secret, since the page sees the callback it is handed.
+	 */
+	private final AtomicReference<String> idleToken = new AtomicReference<String>();
+
+	private boolean suspended;
+
+	private Observer observer;
+
+	private int deferredCount;
+
+	private int suspendedCount;
+
+	private int runCount;
+
+	private int droppedCount;
+
+	private final Runnable idleTimeout = new Runnable() {
+		@Override
+		public void run() {
+			committed = true;
+			runNext(generation);
+		}
+	};
+
+	InjectionScheduler(WebViewClientGm client) {
+		this.client = client;
+	}
+
+	/**
+	 * Drops everything queued for the previous page. Called when a new page
+	 * starts loading.
+	 */
+	void reset(WebView view) {
+		if (this.view != null) {
+			this.view.removeCallbacks(idleTimeout);
+		}
+		this.view = view;
+		generation++;
+		for (Pending pending : queue) {
+			droppedCount++;
+			notify(EVENT_DROPPED, pending.key);
+		}
+		queue.clear();
+		committed = false;
+		finished = false;
+		waiting = false;
+		idleToken.set(null);
+	}
+
+	/**
+	 * Queues a user script to be evaluated in a later idle slice, or once the
+	 * view is resumed if it is suspended.
+	 */
+	void defer(WebView view, ScriptCriteria key, String jsBeforeScript,
+			String jsAfterScript) {
+		this.view = view;
+		queue.add(new Pending(key, jsBeforeScript, jsAfterScript));
+		if (suspended) {
+			suspendedCount++;
+			notify(EVENT_SUSPENDED, key);
+		} else {
+			deferredCount++;
+			notify(EVENT_DEFERRED, key);
+		}
+	}
+
+	/**
+	 * Suspends or resumes the evaluation of document-end scripts. On resume
+	 * held back critical scripts are evaluated right away and deferred ones go
+	 * back to waiting for idle slices.
+	 */
+	public void setSuspended(boolean suspended) {
+		if (this.suspended == suspended) {
+			return;
+		}
+		this.suspended = suspended;
+		if (!suspended && view != null) {
+			for (int i = 0; i < queue.size();) {
+				Pending pending = queue.get(i);
+				if (pending.key.getRunPriority() == ScriptCriteria.PRIORITY_CRITICAL) {
+					queue.remove(i);
+					run(pending);
+				} else {
+					i++;
+				}
+			}
+			if (finished) {
+				requestIdle();
+			}
+		}
+	}
+
+	/**
+	 * @return a counter increased whenever a new page starts loading
+	 */
+	int getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * @return true if document-end scripts are held back
+	 */
+	public boolean isSuspended() {
+		return suspended;
+	}
+
+	void onPageFinished(WebView view) {
+		this.view = view;
+		finished = true;
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+			// onPageCommitVisible is not available
+			committed = true;
+		}
+		requestIdle();
+	}
+
+	void onPageCommitVisible(WebView view) {
+		this.view = view;
+		if (committed) {
+			return;
+		}
+		committed = true;
+		if (finished) {
+			if (waiting) {
+				// only the fallback timer is armed yet
+				view.removeCallbacks(idleTimeout);
+				waiting = false;
+			}
+			requestIdle();
+		}
+	}
+
+	/**
+	 * Asks the page to report its next idle slice. A timer guards against
+	 * pages that never report one (or have no bridge).
+	 */
+	private void requestIdle() {
+		if (suspended || waiting || queue.isEmpty() || view == null) {
+			return;
+		}
+		waiting = true;
+		if (committed) {
+			String token = UUID.randomUUID().toString();
+			idleToken.set(token);
+			client.evaluate(view, "(function(){var f=function(){"
+					+ client.getJsBridgeName() + ".idle(\"" + token
+					+ "\"," + generation + ")};"
+					+ "if(window.requestIdleCallback)requestIdleCallback(f,{timeout:"
+					+ IDLE_TIMEOUT + "});else setTimeout(f,16)})()");
+		}
+		view.postDelayed(idleTimeout, IDLE_TIMEOUT * 2);
+	}
+
+	/**
+	 * Called from the JavaBridge thread when the page reports an idle slice.
+	 *
+	 * @param token
+	 *            the token of the requested slice, spent by this call
+	 * @param generation
+	 *            the page generation the slice was requested for
+	 */
+	public void onIdle(String token, final int generation) {
+		WebView view = this.view;
+		String expected = idleToken.get();
+		if (view == null || expected == null || !expected.equals(token)
+				|| !idleToken.compareAndSet(expected, null)) {
+			return;
+		}
+		view.post(new Runnable() {
+			@Override
+			public void run() {
+				runNext(generation);
+			}
+		});
+	}
+
+	/**
+	 * Evaluates the next queued script, then waits for another idle slice.
+	 */
+	private void runNext(int generation) {
+		if (generation != this.generation || !waiting) {
+			return;
+		}
+		waiting = false;
+		view.removeCallbacks(idleTimeout);
+		if (!suspended && !queue.isEmpty()) {
+			run(queue.remove(0));
+		}
+		requestIdle();
+	}
+
+	private void run(Pending pending) {
+		runCount++;
+		notify(EVENT_RUN, pending.key);
+		client.runScript(view, pending.key, pending.jsBeforeScript,
+				pending.jsAfterScript);
+	}
+
+	private void notify(int event, ScriptCriteria key) {
+		Observer observer = this.observer;
+		if (observer != null) {
+			observer.onSchedulerEvent(event, key);
+		}
+	}
+
+	/**
+	 * @param observer
+	 *            receives the events of this scheduler (may be null)
+	 */
+	public void setObserver(Observer observer) {
+		this.observer = observer;
+	}
+
+	/**
+	 * @return the number of scripts queued for idle slices
+	 */
+	public int getDeferredCount() {
+		return deferredCount;
+	}
+
+	/**
+	 * @return the number of scripts held back while suspended
+	 */
+	public int getSuspendedCount() {
+		return suspendedCount;
+	}
+
+	/**
+	 * @return the number of queued scripts that were evaluated
+	 */
+	public int getRunCount() {
+		return runCount;
+	}
+
+	/**
+	 * @return the number of queued scripts that were never evaluated
+	 */
+	public int getDroppedCount() {
+		return droppedCount;
+	}
+
+	/**
+	 * @return the number of scripts waiting for an idle slice
+	 */
+	public int getQueueSize() {
+		return queue.size();
+	}
+
+	private static class Pending {
+		final ScriptCriteria key;
+		final String jsBeforeScript;
+		final String jsAfterScript;
+
+		Pending(ScriptCriteria key, String jsBeforeScript, String jsAfterScript) {
+			this.key = key;
+			this.jsBeforeScript = jsBeforeScript;
+			this.jsAfterScript = jsAfterScript;
+		}
+	}
+
+}
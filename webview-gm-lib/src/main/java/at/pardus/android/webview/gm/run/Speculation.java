@@ -0,0 +1,202 @@
+/*
+ *    Copyright 2012 Werner Bayer
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package at.pardus.android.webview.gm.run;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.database.SQLException;
+
+import at.pardus.android.webview.gm.model.Script;
+import at.pardus.android.webview.gm.model.ScriptCriteria;
+import at.pardus.android.webview.gm.store.CMN;
+import at.pardus.android.webview.gm.store.ScriptStoreSQLite;
+
+/**
+ * Matches and assembles the user scripts of a URL off the UI thread, as soon
+ * as shouldOverrideUrlLoading reveals where a navigation goes.
+ *
+ * The match set ends up in the URL cache of the ScriptStoreSQLite; assembled
+ * payloads are handed to the compiled-payload cache by {@link #consume} once
+ * the page actually starts. The @resource files of the matches are read
+ * ahead so that GM_getResourceText and GM_getResourceURL find them in the
+ * page cache. A speculation is bounded by {@link #MAX_SCRIPTS},
+ * {@link #MAX_CHARS} and {@link #MAX_RESOURCE_BYTES} so that a miss stays
+ * cheap.
+ */
+class Speculation implements Runnable {
+
+	private static final int MAX_SCRIPTS = 8;
+
+	private static final int MAX_CHARS = 2 * 1024 * 1024;
+
+	private static final long MAX_RESOURCE_BYTES = 4 * 1024 * 1024;
+
+	private static ExecutorService executor;
+
+	final String url;
+
+	private final WebViewClientGm client;
+
+	private final ScriptStoreSQLite scriptStore;
+
+	private final Set<ScriptCriteria> cached;
+
+	private final int cacheGeneration;
+
+	private final LinkedHashMap<ScriptCriteria, String> payloads = new LinkedHashMap<ScriptCriteria, String>();
+
+	private volatile boolean cancelled;
+
+	private volatile boolean done;
+
+	/**
+	 * @param cached
+	 *            the scripts already in the compiled-payload cache, which are
+	 *            not assembled again
+	 */
+	Speculation(WebViewClientGm client, ScriptStoreSQLite scriptStore,
+			String url, Set<ScriptCriteria> cached) {
+		this.client = client;
+		this.scriptStore = scriptStore;
+		this.url = url;
+		this.cached = cached;
+		this.cacheGeneration = scriptStore.getCacheGeneration();
+	}
+
+	void start() {
+		synchronized (Speculation.class) {
+			if (executor == null) {
+				executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "gm-speculation");
+						thread.setDaemon(true);
+						thread.setPriority(Thread.MIN_PRIORITY);
+						return thread;
+					}
+				});
+			}
+			executor.execute(this);
+		}
+	}
+
+	void cancel() {
+		cancelled = true;
+	}
+
+	@Override
+	public void run() {
+		try {
+			if (cancelled) {
+				return;
+			}
+			ScriptCriteria[] matches = scriptStore.get(url, true, false);
+			if (matches == null) {
+				return;
+			}
+			StringBuilder buffer = new StringBuilder();
+			int chars = 0;
+			for (ScriptCriteria key : matches) {
+				if (cancelled || payloads.size() >= MAX_SCRIPTS || chars >= MAX_CHARS) {
+					break;
+				}
+				if (!key.isEnabled() || key.hasRightToRun() == 0 || cached.contains(key)) {
+					continue;
+				}
+				Script script = scriptStore.get(key);
+				if (script == null) {
+					continue;
+				}
+				String jsCode = client.assemble(key, script, buffer, "", "");
+				chars += jsCode.length();
+				payloads.put(key, jsCode);
+			}
+			long bytes = 0;
+			byte[] scratch = new byte[64 * 1024];
+			for (ScriptCriteria key : payloads.keySet()) {
+				if (key.hasRightResource()) {
+					for (File file : scriptStore.getResourceFiles(key)) {
+						if (cancelled || bytes >= MAX_RESOURCE_BYTES) {
+							return;
+						}
+						bytes += preRead(file, scratch, MAX_RESOURCE_BYTES - bytes);
+					}
+				}
+			}
+		} catch (SQLException e) {
+			// the database failed or was closed underneath, treat as a miss
+			CMN.debug(e);
+			payloads.clear();
+		} catch (IllegalStateException e) {
+			// the registry changed underneath, treat as a miss
+			CMN.debug(e);
+			payloads.clear();
+		} finally {
+			done = true;
+		}
+	}
+
+	/**
+	 * Reads a file into nothing, only to have it in the page cache.
+	 *
+	 * @return the number of bytes read
+	 */
+	private static long preRead(File file, byte[] scratch, long max) {
+		long total = 0;
+		try {
+			FileInputStream input = new FileInputStream(file);
+			try {
+				int n;
+				while (total < max && (n = input.read(scratch)) != -1) {
+					total += n;
+				}
+			} finally {
+				input.close();
+			}
+		} catch (IOException e) {
+			CMN.debug(e);
+		}
+		return total;
+	}
+
+	/**
+	 * Moves the assembled payloads into cache if the speculation finished and
+	 * no script changed in the meantime. Called on the UI thread.
+	 *
+	 * @return true if the speculation was used
+	 */
+	boolean consume(Map<ScriptCriteria, String> cache) {
+		if (!done || cancelled || cacheGeneration != scriptStore.getCacheGeneration()) {
+			return false;
+		}
+		for (Map.Entry<ScriptCriteria, String> entry : payloads.entrySet()) {
+			if (!cache.containsKey(entry.getKey())) {
+				cache.put(entry.getKey(), entry.getValue());
+			}
+		}
+		return true;
+	}
+
+}
@@ -17,22 +17,37 @@
 package at.pardus.android.webview.gm.run;
 
 import android.graphics.Bitmap;
+import android.net.Uri;
 import android.os.Build;
 import android.util.Log;
+import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
 import android.webkit.WebView;
 import android.webkit.WebViewClient;
 
 import org.apache.commons.lang3.ArrayUtils;
 import org.knziha.metaline.Metaline;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.regex.Pattern;
 
 import at.pardus.android.webview.gm.model.Script;
 import at.pardus.android.webview.gm.model.ScriptCriteria;
 import at.pardus.android.webview.gm.model.ScriptRequire;
+import at.pardus.android.webview.gm.model.ScriptResource;
 import at.pardus.android.webview.gm.store.CMN;
 import at.pardus.android.webview.gm.store.ScriptStoreSQLite;
 
@@ -46,9 +61,49 @@ public class WebViewClientGm extends WebViewClient {
 	private static final String JSCONTAINERSTART = "(function() {";
 
 	private static final String JSCONTAINEREND = "\n})()";
+
+	private static final String JSTIMEDSTART = "var GM_t0=Date.now(),GM_e=1;try{(function() {\n";
+
+	private static final String JSTIMEDEND = "\n}).call(this);GM_e=0}finally{GM_stat(Date.now()-GM_t0,GM_e)}";
 	
 	private static final boolean bigcake = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
 
+	/**
+	 * Origin of the virtual URLs served by {@link #shouldInterceptRequest}.
+	 * A reserved host under https, so that the URLs load on any page and
+	 * never reach the network.
+	 */
+	static final String VIRTUAL_ORIGIN = "https://webview-gm.invalid/";
+
+	/** resource/&lt;runtime id&gt;/&lt;token&gt;/&lt;resource name&gt; */
+	private static final String RESOURCE_PATH = VIRTUAL_ORIGIN + "resource/";
+
+	/**
+	 * require/&lt;content hash&gt;.js, the same for every script and page so
+	 * that the WebView caches it; @require'd libraries are public code.
+	 */
+	private static final String REQUIRE_PATH = VIRTUAL_ORIGIN + "require/";
+
+	/**
+	 * Loads the @require URLs that follow one after another as page scripts,
+	 * then runs GM_run; asks for the inlined payload if one fails, e.g.
+	 * because of the page's Content-Security-Policy.
+	 */
+	private static final String JSREQUIRELOADER = "(function GM_req(u,i){if(i==u.length)return GM_run();"
+			+ "var s=document.createElement('script');s.src=u[i];"
+			+ "s.onload=function(){s.remove();GM_req(u,i+1)};"
+			+ "s.onerror=function(){s.remove();GM_wv.bg.requireFallback(GM_wv.id,GM_wv.sec)};"
+			+ "(document.head||document.documentElement).appendChild(s)})(";
+
+	/** Closes the URL list of {@link #JSREQUIRELOADER}. */
+	private static final String JSREQUIRELOADEREND = "],0)";
+
+	/** Virtual URLs name their content by hash, so it never changes. */
+	private static final String CACHE_FOREVER = "public, max-age=31536000, immutable";
+
+	/** Ms document-start injection waits for the store to finish opening. */
+	private static final long READY_WAIT = 200;
+
    /**
 	var unsafeWindow = window, GM_window = unsafeWindow.Proxy?new unsafeWindow.Proxy(unsafeWindow, {
 	  get: function(target, property) {
@@ -64,16 +119,23 @@ public class WebViewClientGm extends WebViewClient {
 		return target[property];
 	  }
 	}):unsafeWindow;
-	var GM_wv={};
+	var GM_wv={}, GM_vs;
+	if(GM_vs) {
+		document.addEventListener('visibilitychange', function(){
+			GM_vsFlush(document.visibilityState=='visible');
+		});
+		unsafeWindow.addEventListener('pagehide', function(){GM_vsFlush()});
+	}
 	function GM_isInstalled(a,b,c) {
 		GM_wv.bg.isInstalled(a,b,c);
 	}
 	function GM_listValues() {
+		if(GM_vs) return Object.keys(GM_vs.d);
 		return GM_wv.bg.listValues(GM_wv.id, GM_wv.sec).split(",");
 	}
 	function GM_getValue(name, v) {
 		//console.log('GM_getValue', name, v);
-		var ret =  GM_wv.bg.getValue(GM_wv.id, GM_wv.sec, name);
+		var ret = GM_vs ? GM_vs.d[name] : GM_wv.bg.getValue(GM_wv.id, GM_wv.sec, name);
 		if(ret==undefined) ret=v;
 		//console.log('get=', ret);
 		if(ret!=undefined && ret!=null && ret!='') try{ret=JSON.parse(ret)}catch(e){console.log(e)};
@@ -83,16 +145,156 @@ public class WebViewClientGm extends WebViewClient {
 	function GM_setValue(name, value) {
 		//console.log('GM_setValue', name, value);
 		//console.log(new Error());
+		if(GM_vs) return GM_vsPut(name, JSON.stringify(value));
 		GM_wv.bg.setValue(GM_wv.id, GM_wv.sec, name, JSON.stringify(value));
 	}
 	function GM_deleteValue(name) {
+		if(GM_vs) return GM_vsPut(name, null);
 		GM_wv.bg.deleteValue(GM_wv.id, GM_wv.sec, name);
 	}
+	function GM_getValues(names) {
+		var defs=Array.isArray(names)?null:names, keys=defs?Object.keys(defs):names, ret={};
+		var d=GM_vs?GM_vs.d:JSON.parse(GM_wv.bg.getValues(GM_wv.id, GM_wv.sec, JSON.stringify(keys))||'{}');
+		for(var i=0;i<keys.length;i++) {
+			var k=keys[i], v=d[k];
+			if(v!=undefined && v!='') try{v=JSON.parse(v)}catch(e){console.log(e)};
+			if(v!=undefined) ret[k]=v;
+			else if(defs) ret[k]=defs[k];
+		}
+		return ret;
+	}
+	function GM_setValues(values) {
+		var q={};
+		for(var k in values) q[k]=JSON.stringify(values[k]);
+		if(GM_vs) {
+			for(var k in q) GM_vsPut(k, q[k]);
+			return;
+		}
+		GM_wv.bg.setValues(GM_wv.id, GM_wv.sec, JSON.stringify(q));
+	}
+	function GM_deleteValues(names) {
+		if(GM_vs) {
+			for(var i=0;i<names.length;i++) GM_vsPut(names[i], null);
+			return;
+		}
+		GM_wv.bg.deleteValues(GM_wv.id, GM_wv.sec, JSON.stringify(names));
+	}
+	var GM_vcn=0;
+	function GM_addValueChangeListener(name, cb) {
+		var ls=GM_wv.vl||(GM_wv.vl={}), id=++GM_vcn;
+		if(!ls[name]) {
+			// changes arrive under a name the native bus drew for this page, with the script's secret
+			var ch=GM_wv.bg.addValueChangeListener(GM_wv.id, GM_wv.sec, name);
+			if(!ch) return id;
+			if(ch!=GM_wv.vch) try{
+				Object.defineProperty(unsafeWindow, ch, {value:GM_vcDispatch});
+				GM_wv.vch=ch;
+			} catch(e){console.log(e)}
+			ls[name]={};
+		}
+		ls[name][id]=cb;
+		return id;
+	}
+	function GM_vcDispatch(sec, changes) {
+		var ls=GM_wv.vl;
+		if(sec!==GM_wv.sec || !ls) return;
+		var p=function(v){if(v!=null && v!='') try{v=JSON.parse(v)}catch(e){}; return v==null?undefined:v};
+		for(var i=0;i<changes.length;i++) {
+			var c=changes[i], k=c[0], o=c[1], n=c[2], r=c[3], l=ls[k];
+			if(GM_vs && r) {
+				if(n==null) delete GM_vs.d[k];
+				else GM_vs.d[k]=n;
+			}
+			for(var id in l) try{l[id](k, p(o), p(n), r)}catch(e){console.log(e)};
+		}
+	}
+	function GM_removeValueChangeListener(id) {
+		var ls=GM_wv.vl;
+		if(ls) for(var k in ls) if(ls[k][id]) {
+			delete ls[k][id];
+			if(!Object.keys(ls[k]).length) {
+				delete ls[k];
+				GM_wv.bg.removeValueChangeListener(GM_wv.id, GM_wv.sec, k);
+			}
+			return true;
+		}
+		return false;
+	}
+	function GM_vsPut(name, value) {
+		if(value==null) delete GM_vs.d[name];
+		else GM_vs.d[name]=value;
+		if(!GM_vs.q) {
+			GM_vs.q={};
+			setTimeout(function(){GM_vsFlush()}, 0);
+		}
+		GM_vs.q[name]=value;
+	}
+	function GM_vsFlush(check) {
+		if(!GM_vs || !GM_vs.q && !check) return;
+		var q=GM_vs.q;
+		GM_vs.q=null;
+		var r=GM_wv.bg.flushValues(GM_wv.id, GM_wv.sec, GM_vs.v, JSON.stringify(q||{}));
+		if(!r) return;
+		if(r.charAt(0)!='{') {
+			GM_vs.v=+r;
+			return;
+		}
+		// written elsewhere in the meantime: a fresh snapshot, or none if too large
+		r=JSON.parse(r);
+		if(r.d) {
+			GM_vs.v=r.v;
+			GM_vs.d=r.d;
+		} else {
+			GM_vs=null;
+		}
+	}
+	var GM_css;
 	function GM_addStyle(css) {
-		var style = document.createElement("style");
-		style.type = "text/css";
-		style.innerHTML = css;
-		document.head.appendChild(style);
+		// kept in the script's closure: the page can neither pre-seed nor rewrite it
+		var st=GM_css;
+		if(!st) {
+			st=GM_css={seg:{}, n:0, q:0, f:function(){
+				st.q=0;
+				var all=[];
+				for(var i in st.seg) all.push(st.seg[i]);
+				if(st.sheet) {
+					st.sheet.replaceSync(all.join('\n'));
+					return;
+				}
+				if(!st.el) {
+					st.el=document.createElement('style');
+					st.el.type='text/css';
+				}
+				st.el.textContent=all.join('\n');
+				var p=document.head||document.documentElement;
+				if(!p) document.addEventListener('DOMContentLoaded', st.f);
+				else if(st.el.parentNode!=p) p.appendChild(st.el);
+			}, s:function(){
+				if(st.q) return;
+				st.q=1;
+				if(unsafeWindow.Promise) Promise.resolve().then(st.f); else setTimeout(st.f, 0);
+			}};
+			try{
+				if(document.adoptedStyleSheets && CSSStyleSheet.prototype.replaceSync) {
+					st.sheet=new CSSStyleSheet();
+					document.adoptedStyleSheets=document.adoptedStyleSheets.concat([st.sheet]);
+				}
+			} catch(e){st.sheet=null}
+		}
+		css=''+css;
+		var n=++st.n;
+		st.seg[n]=css;
+		st.s();
+		var r=GM_st();
+		r.c[0]+=css.split('}').length-1;
+		r.c[1]+=css.length;
+		return {remove:function(){delete st.seg[n]; st.s()}};
+	}
+	function GM_removeStyles() {
+		if(GM_css) {
+			GM_css.seg={};
+			GM_css.s();
+		}
 	}
 	function GM_log(message) {
 		GM_wv.bg.log(GM_wv.id, GM_wv.sec, message);
@@ -101,7 +303,15 @@ public class WebViewClientGm extends WebViewClient {
 		return GM_wv.bg.getResourceURL(GM_wv.id, GM_wv.sec, resourceName);
 	}
 	function GM_getResourceText(resourceName) {
-		return GM_wv.bg.getResourceText(GM_wv.id, GM_wv.sec, resourceName);
+		var c=GM_wv.bg.getResourceTextChunk(GM_wv.id, GM_wv.sec, resourceName, 0), i=c.indexOf(':');
+		var n=+c.substring(0, i), p=[c=c.substring(i+1)], o=c.length;
+		while(o<n) {
+			c=GM_wv.bg.getResourceTextChunk(GM_wv.id, GM_wv.sec, resourceName, o);
+			if(!c) break;
+			p.push(c);
+			o+=c.length;
+		}
+		return p.length==1?c:p.join('');
 	}
 	var realXMLHttpRequest;
 	function GM_xmlhttpRequest(details) {
@@ -181,6 +391,27 @@ public class WebViewClientGm extends WebViewClient {
 //		console.log('ret::', JSON.parse(ret));
 		return ret?JSON.parse(ret):null;
 	}
+	var GM_sr, GM_stt;
+	function GM_st() {
+		if(!GM_wv.bg) return {t:[], c:[0,0]};
+		if(!GM_sr) {
+			// kept in the script's closure, out of the page's reach
+			GM_sr={t:[], c:[0,0]};
+			if(GM_stt===undefined) unsafeWindow.addEventListener('pagehide', GM_stFlush);
+			GM_stt=setTimeout(GM_stFlush, 5000);
+		}
+		return GM_sr;
+	}
+	function GM_stFlush() {
+		var r=GM_sr;
+		GM_sr=null;
+		clearTimeout(GM_stt);
+		if(r) GM_wv.bg.reportStats(GM_wv.id, GM_wv.sec, JSON.stringify(r));
+	}
+	function GM_stat(t, e) {
+		var r=GM_st();
+		if(r.t.length<64) r.t.push(e?-1-t:t);
+	}
 	function nonimpl(n) {
 		GM_log(n+" is not yet implemented");
 	}
@@ -288,6 +519,32 @@ public class WebViewClientGm extends WebViewClient {
 	
 	private final  LinkedHashMap<ScriptCriteria, String> bufferScript ;
 	
+	private final InjectionScheduler scheduler;
+	
+	private Speculation speculation;
+	
+	private int speculationHits;
+	
+	private int speculationMisses;
+	
+	private boolean valueSnapshots;
+	
+	private boolean requireUrls;
+
+	private boolean resourceUrls;
+
+	/** The URL of the page started last. */
+	private String pageUrl;
+
+	/** Between onPageStarted and onPageFinished. */
+	private boolean pageLoading;
+
+	/**
+	 * The require loaders evaluated on the current page by runtime id, each
+	 * allowing a single fallback to the inlined payload.
+	 */
+	private final HashMap<Integer, RequireFallback> requireFallbacks = new HashMap<Integer, RequireFallback>();
+	
 	/**
 	 * Constructs a new WebViewClientGm with a scriptStore.
 	 *
@@ -307,6 +564,7 @@ public class WebViewClientGm extends WebViewClient {
 		this.secret = secret;
 		buffer = scriptStore.buffer;
 		bufferScript = scriptStore.bufferedScript;
+		scheduler = new InjectionScheduler(this);
 	}
 	
 	/**
@@ -317,6 +575,10 @@ public class WebViewClientGm extends WebViewClient {
 	 * JavaScript bridge methods require a secret that is set inside of each
 	 * user script's anonymous function.
 	 *
+	 * Scripts with a deferred priority, and all document-end scripts while
+	 * the client is suspended, are handed to the InjectionScheduler instead of
+	 * being evaluated at document-end.
+	 *
 	 * @param view
 	 *            the view to load scripts in
 	 * @param url
@@ -337,6 +599,10 @@ public class WebViewClientGm extends WebViewClient {
 			Log.w(TAG, "not running any scripts");
 			return null;
 		}
+		if (!scriptStore.isReady() && (pageFinished || !scriptStore.awaitReady(READY_WAIT))) {
+			runWhenReady(view, url, pageFinished, jsBeforeScript, jsAfterScript);
+			return null;
+		}
 		ScriptCriteria[] matchingScripts = scriptStore.get(url, true, false);
 		CMN.debug("matchingScripts::", Arrays.toString(matchingScripts));
 		if (matchingScripts == null) {
@@ -352,89 +618,558 @@ public class WebViewClientGm extends WebViewClient {
 			//CMN.debug("hasRightRunStart::", key, key.hasRightRunStart(), key.hasRightRunEnd());
 			if (key.isEnabled() && (!pageFinished && key.hasRightRunStart() || pageFinished && key.hasRightRunEnd())) {
 				//Log.i(TAG, "Running script \"" + key + "\" on " + url);
-				String jsCode = bufferScript.get(key);
-				if (jsCode == null) {
-					Script script = scriptStore.get(key);
-					buffer.setLength(0);
-					buffer.ensureCapacity(JSUNSAFEWINDOW.length()*3+script.getContent().length());
-					boolean unwrap = false;//key.hasRightUnwrap();
-					if (!bigcake) {
-						buffer.append("javascript:\n");
-						unwrap = false;
-					}
-					if (!unwrap) {
-						buffer.append(JSCONTAINERSTART);
-					}
-					buffer.append(JSUNSAFEWINDOW);
-					if (!key.hasRightNone()) {
-						key.register();
-						buffer.append("GM_wv.n=\"").append(key.getName().replace("\"", "\\\"")).append("\"");
-						buffer.append(";GM_wv.ns=\"").append(key.getNamespace().replace("\"", "\\\"")).append("\"");
-						buffer.append(";GM_wv.ver=\"").append(script.getVersion().replace("\"", "\\\"")).append("\"");
-						buffer.append(";GM_wv.id=\"").append(key.runtimeId).append("\"");
-						buffer.append(";GM_wv.sec=\"").append(key.secret).append("\"");
-						buffer.append(";GM_wv.bg=").append(jsBridgeName);
-						buffer.append(";GM_wv.hash=\"").append(key.hash).append("\"");
-						buffer.append(";GM_wv.bg=").append(jsBridgeName)
-								.append(";").append(JSGMINFO).append("\n");
-					}
-					
-					String content = script.getContent();
-					
-					// Get @require'd scripts to inject for this script.
-					ScriptRequire[] requires = script.getRequires();
-					if (requires != null) {
-						int idx = content.indexOf("// ==/UserScript==");
-						if (idx>0) {
-							ArrayList<String> required = new ArrayList<>(requires.length);
-							while ((idx = content.lastIndexOf("\n// @require", idx - 9)) > 0) {
-								String urlKey = content.substring(idx + 12, content.indexOf("\n", idx + 15)).trim();
-								for (ScriptRequire currentRequire : requires) {
-									if (urlKey.equals(currentRequire.getUrl())) {
-										//CMN.debug("currentRequire::", currentRequire.getContent());
-										required.add(currentRequire.getContent());
-									}
-								}
-							}
-							for (int i = required.size()-1; i >= 0; i--) {
-								//CMN.debug("currentRequire::", currentRequire.getContent());
-								buffer.append(required.get(i));
-								buffer.append("\n");
-							}
+				if (pageFinished && (key.getRunPriority() != ScriptCriteria.PRIORITY_CRITICAL
+						|| scheduler.isSuspended())) {
+					scheduler.defer(view, key, jsBeforeScript, jsAfterScript);
+				} else {
+					runScript(view, key, jsBeforeScript, jsAfterScript);
+				}
+			}
+		}
+		return matchingScripts;
+	}
+
+	/**
+	 * Queues the scripts of a page that loaded before the store was ready,
+	 * to run once it is unless the view has moved on to another page.
+	 */
+	private void runWhenReady(final WebView view, final String url,
+			final boolean pageFinished, final String jsBeforeScript,
+			final String jsAfterScript) {
+		Log.w(TAG, "Store not ready, queueing scripts for " + url);
+		scriptStore.whenReady(new Runnable() {
+			@Override
+			public void run() {
+				if (url.equals(view.getUrl())) {
+					runMatchingScripts(view, url, pageFinished, jsBeforeScript, jsAfterScript);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Evaluates a single user script, assembling and caching its code on first
+	 * use.
+	 */
+	void runScript(WebView view, ScriptCriteria key, String jsBeforeScript,
+			String jsAfterScript) {
+		String jsCode = bufferScript.get(key);
+		if (jsCode == null) {
+			Script script = scriptStore.get(key);
+			if (script == null) {
+				return;
+			}
+			// todo FIXME java.lang.OutOfMemoryError: Failed to allocate a 16 byte allocation with 1795200 free bytes and 1753KB until OOM
+			jsCode = assemble(key, script, buffer, jsBeforeScript, jsAfterScript);
+			bufferScript.put(key, jsCode);
+		}
+		if (valueSnapshots && bigcake && !key.hasRightNone() && key.hasRightGetValue()) {
+			jsCode = withValueSnapshot(key, jsCode);
+		}
+		if (jsCode.endsWith(JSREQUIRELOADEREND + JSCONTAINEREND)) {
+			requireFallbacks.put(key.runtimeId,
+					new RequireFallback(pageUrl, scheduler.getGeneration()));
+		}
+		evaluate(view, jsCode);
+	}
+
+	/**
+	 * Declares the current values of a script at the top of its cached
+	 * payload, so that GM_getValue resolves them without a bridge call.
+	 */
+	private String withValueSnapshot(ScriptCriteria key, String jsCode) {
+		buffer.setLength(0);
+		buffer.append(JSCONTAINERSTART).append("var GM_vs=");
+		if (!scriptStore.getValueSnapshot(key, buffer)) {
+			return jsCode;
+		}
+		buffer.append(";").append(jsCode, JSCONTAINERSTART.length(), jsCode.length());
+		return buffer.toString();
+	}
+
+	/**
+	 * Assembles the code of a user script: the GM API, its @require'd scripts
+	 * and its content. May be called off the UI thread with a buffer of its
+	 * own.
+	 *
+	 * @param buffer
+	 *            the builder to assemble the code in
+	 * @return the code to evaluate
+	 */
+	String assemble(ScriptCriteria key, Script script, StringBuilder buffer,
+			String jsBeforeScript, String jsAfterScript) {
+		return assemble(key, script, buffer, jsBeforeScript, jsAfterScript, requireUrls);
+	}
+
+	/**
+	 * @param requireUrls
+	 *            true to load the @require'd scripts from virtual URLs
+	 *            instead of inlining them
+	 */
+	private String assemble(ScriptCriteria key, Script script, StringBuilder buffer,
+			String jsBeforeScript, String jsAfterScript, boolean requireUrls) {
+		buffer.setLength(0);
+		buffer.ensureCapacity(JSUNSAFEWINDOW.length()*3+script.getContent().length());
+		boolean unwrap = false;//key.hasRightUnwrap();
+		if (!bigcake) {
+			buffer.append("javascript:\n");
+			unwrap = false;
+		}
+		if (!unwrap) {
+			buffer.append(JSCONTAINERSTART);
+		}
+		buffer.append(JSUNSAFEWINDOW);
+		if (!key.hasRightNone()) {
+			key.register();
+			buffer.append("GM_wv.n=\"").append(key.getName().replace("\"", "\\\"")).append("\"");
+			buffer.append(";GM_wv.ns=\"").append(key.getNamespace().replace("\"", "\\\"")).append("\"");
+			buffer.append(";GM_wv.ver=\"").append(script.getVersion().replace("\"", "\\\"")).append("\"");
+			buffer.append(";GM_wv.id=\"").append(key.runtimeId).append("\"");
+			buffer.append(";GM_wv.sec=\"").append(key.secret).append("\"");
+			buffer.append(";GM_wv.bg=").append(jsBridgeName);
+			buffer.append(";GM_wv.hash=\"").append(key.hash).append("\"");
+			buffer.append(";GM_wv.bg=").append(jsBridgeName)
+					.append(";").append(JSGMINFO).append("\n");
+		}
+		
+		String content = script.getContent();
+		
+		// Get @require'd scripts to inject for this script.
+		ScriptRequire[] requires = script.getRequires();
+		ArrayList<ScriptRequire> required = null;
+		if (requires != null) {
+			int idx = content.indexOf("// ==/UserScript==");
+			if (idx>0) {
+				required = new ArrayList<>(requires.length);
+				while ((idx = content.lastIndexOf("\n// @require", idx - 9)) > 0) {
+					String urlKey = content.substring(idx + 12, content.indexOf("\n", idx + 15)).trim();
+					for (ScriptRequire currentRequire : requires) {
+						if (urlKey.equals(currentRequire.getUrl())) {
+							//CMN.debug("currentRequire::", currentRequire.getContent());
+							required.add(currentRequire);
 						}
 					}
-					if (key.needReplaceWindowGM_() && content.indexOf(".GM_")>0) {
-						content = content.replaceAll("[^\\s:;,.!?|{}()\\[\\] + -*/]+?\\.GM_", "GM_window.GM_");
-					}
-					buffer.append(jsBeforeScript)
-							.append(content)
-							.append(jsAfterScript);
-					if (!unwrap) {
-						buffer.append(JSCONTAINEREND);
-					}
-					
-					// todo FIXME java.lang.OutOfMemoryError: Failed to allocate a 16 byte allocation with 1795200 free bytes and 1753KB until OOM
-					jsCode = buffer.toString();
-					bufferScript.put(key, jsCode);
 				}
-                if (bigcake) {
-                    view.evaluateJavascript(jsCode, null);
-                } else {
-                    view.loadUrl(jsCode);
-                }
 			}
 		}
-		return matchingScripts;
+		// the fallback for failed loads needs the bridge
+		if (required == null || required.isEmpty() || key.hasRightNone()) {
+			requireUrls = false;
+		} else if (requireUrls) {
+			for (ScriptRequire currentRequire : required) {
+				if (currentRequire.getHash() == null) {
+					requireUrls = false;
+					break;
+				}
+			}
+		}
+		if (required != null && !requireUrls) {
+			for (int i = required.size()-1; i >= 0; i--) {
+				//CMN.debug("currentRequire::", currentRequire.getContent());
+				ScriptRequire currentRequire = required.get(i);
+				if (currentRequire.getContent() == null && currentRequire.getHash() != null) {
+					// large, read in segments straight into the payload, which
+					// holds it whole anyway; no intermediate String of it
+					scriptStore.appendRequireText(currentRequire.getHash(), buffer);
+				} else {
+					buffer.append(currentRequire.getContent());
+				}
+				buffer.append("\n");
+			}
+		}
+		if (requireUrls) {
+			buffer.append("var GM_run=function(){\n");
+		}
+		if (key.needReplaceWindowGM_() && content.indexOf(".GM_")>0) {
+			content = content.replaceAll("[^\\s:;,.!?|{}()\\[\\] + -*/]+?\\.GM_", "GM_window.GM_");
+		}
+		// time the synchronous run; reported back by GM_stat in one batch per page
+		boolean timed = !key.hasRightNone();
+		if (timed) {
+			buffer.append(JSTIMEDSTART);
+		}
+		buffer.append(jsBeforeScript)
+				.append(content)
+				.append(jsAfterScript);
+		if (timed) {
+			buffer.append(JSTIMEDEND);
+		}
+		if (requireUrls) {
+			buffer.append("\n};").append(JSREQUIRELOADER).append("[");
+			for (int i = required.size()-1; i >= 0; i--) {
+				String hash = required.get(i).getHash();
+				buffer.append("\"").append(REQUIRE_PATH).append(hash)
+						.append(".js\"").append(i > 0 ? "," : "");
+			}
+			buffer.append(JSREQUIRELOADEREND);
+		}
+		if (!unwrap) {
+			buffer.append(JSCONTAINEREND);
+		}
+		return buffer.toString();
+	}
+
+	/**
+	 * Evaluates a user script with its @require'd scripts inlined, after
+	 * loading them from virtual URLs failed. Only once per loader evaluated,
+	 * and only while the view still shows the page it was evaluated on and
+	 * the script still matches its URL.
+	 */
+	void runScriptInline(WebView view, ScriptCriteria key) {
+		RequireFallback fallback = requireFallbacks.remove(key.runtimeId);
+		if (fallback == null || fallback.generation != scheduler.getGeneration()
+				|| fallback.url == null || !fallback.url.equals(pageUrl)
+				|| !key.isEnabled() || !key.testUrl(fallback.url)) {
+			Log.w(TAG, "Dropping require fallback of " + key);
+			return;
+		}
+		Script script = scriptStore.get(key);
+		if (script != null) {
+			evaluate(view, assemble(key, script, buffer, "", "", false));
+		}
+	}
+
+	/**
+	 * The page a require loader was evaluated on.
+	 */
+	private static class RequireFallback {
+		final String url;
+		final int generation;
+
+		RequireFallback(String url, int generation) {
+			this.url = url;
+			this.generation = generation;
+		}
+	}
+
+	/**
+	 * Evaluates JavaScript code in view, falling back to a javascript: URL
+	 * before KitKat.
+	 */
+	void evaluate(WebView view, String jsCode) {
+		if (bigcake) {
+			view.evaluateJavascript(jsCode, null);
+		} else {
+			view.loadUrl(jsCode.startsWith("javascript:") ? jsCode : "javascript:" + jsCode);
+		}
 	}
 	
+	/**
+	 * Starts matching and assembling the scripts of url in the background, so
+	 * that {@link #onPageStarted} finds them ready. Only the latest
+	 * speculation is kept.
+	 */
+	public void speculate(String url) {
+		if (scriptStore == null || url == null) {
+			return;
+		}
+		if (speculation != null) {
+			if (url.equals(speculation.url)) {
+				return;
+			}
+			speculation.cancel();
+		}
+		speculation = new Speculation(this, scriptStore, url,
+				new HashSet<ScriptCriteria>(bufferScript.keySet()));
+		speculation.start();
+	}
+
+	private void consumeSpeculation(String url) {
+		Speculation speculation = this.speculation;
+		if (speculation != null) {
+			this.speculation = null;
+			if (speculation.url.equals(url) && speculation.consume(bufferScript)) {
+				speculationHits++;
+			} else {
+				speculation.cancel();
+				speculationMisses++;
+			}
+		}
+	}
+
+	/**
+	 * Enables shipping a snapshot of each script's values with its payload.
+	 * GM_getValue and GM_listValues then resolve in the page, and changes are
+	 * written back in batches; a version stamp refreshes snapshots made stale
+	 * by other views when the page becomes visible or writes.
+	 *
+	 * @param valueSnapshots
+	 *            true to ship value snapshots
+	 */
+	public void setValueSnapshots(boolean valueSnapshots) {
+		this.valueSnapshots = valueSnapshots;
+	}
+
+	/**
+	 * Enables loading @require'd scripts through script elements pointing at
+	 * virtual URLs named by content hash, instead of inlining them into each
+	 * payload. The engine can then cache their compiled code across pages.
+	 * The libraries run in the page's scope rather than the user script's,
+	 * and the user script runs once they are loaded; if the page blocks
+	 * them, the inlined payload is evaluated instead.
+	 *
+	 * @param requireUrls
+	 *            true to load requires from virtual URLs
+	 */
+	public void setRequireUrls(boolean requireUrls) {
+		if (this.requireUrls != requireUrls) {
+			this.requireUrls = requireUrls;
+			bufferScript.clear();
+		}
+	}
+
+	/**
+	 * Enables answering GM_getResourceURL with short virtual URLs served from
+	 * the resource files, instead of data: URLs holding the whole content.
+	 * Pages whose Content-Security-Policy allows data: but not the virtual
+	 * origin then fail to load them.
+	 *
+	 * @param resourceUrls
+	 *            true to hand out virtual resource URLs
+	 */
+	public void setResourceUrls(boolean resourceUrls) {
+		this.resourceUrls = resourceUrls;
+	}
+
+	/**
+	 * @return the number of navigations that found their scripts assembled
+	 */
+	public int getSpeculationHits() {
+		return speculationHits;
+	}
+
+	/**
+	 * @return the number of speculations that went unused
+	 */
+	public int getSpeculationMisses() {
+		return speculationMisses;
+	}
+
+	/**
+	 * Gets the URL GM_getResourceURL returns for a resource: a short virtual
+	 * URL served by {@link #shouldInterceptRequest} if enabled and the data
+	 * is stored in a file, else a data: URL.
+	 */
+	String getResourceUrl(ScriptCriteria key, ScriptResource resource) {
+		File file = resource.getFile();
+		if (!resourceUrls || file == null) {
+			return resource.getJavascriptUrl();
+		}
+		return RESOURCE_PATH + key.runtimeId + "/" + virtualToken(key, file.getName()) + "/"
+				+ Uri.encode(resource.getName());
+	}
+
+	/**
+	 * Binds the virtual URL of a resource file to the script's secret, so
+	 * that pages can neither probe for installed scripts nor fetch resources
+	 * they were not handed.
+	 */
+	private static String virtualToken(ScriptCriteria key, String hash) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		digest.update(key.secret.getBytes(Charset.forName("UTF-8")));
+		byte[] bytes = digest.digest(("/" + hash).getBytes(Charset.forName("UTF-8")));
+		StringBuilder sb = new StringBuilder(32);
+		for (int i = 0; i < 16; i++) {
+			sb.append(Character.forDigit((bytes[i] >> 4) & 0xf, 16))
+					.append(Character.forDigit(bytes[i] & 0xf, 16));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Compares in constant time, so that the token cannot be guessed by
+	 * timing.
+	 */
+	private static boolean isVirtualToken(ScriptCriteria key, String hash, String token) {
+		return MessageDigest.isEqual(virtualToken(key, hash).getBytes(Charset.forName("UTF-8")),
+				token.getBytes(Charset.forName("UTF-8")));
+	}
+
+	@Override
+	public WebResourceResponse shouldInterceptRequest(WebView view, String url) {
+		if (url.startsWith(VIRTUAL_ORIGIN)) {
+			return serveVirtual(url);
+		}
+		return super.shouldInterceptRequest(view, url);
+	}
+
+	@Override
+	public WebResourceResponse shouldInterceptRequest(WebView view, WebResourceRequest request) {
+		String url = request.getUrl().toString();
+		if (url.startsWith(VIRTUAL_ORIGIN)) {
+			return serveVirtual(url);
+		}
+		return super.shouldInterceptRequest(view, request);
+	}
+
+	/**
+	 * Serves a virtual URL, called on a background thread of the WebView.
+	 */
+	private WebResourceResponse serveVirtual(String url) {
+		int query = url.indexOf('?');
+		if (query > 0) {
+			url = url.substring(0, query);
+		}
+		if (url.startsWith(RESOURCE_PATH)) {
+			return serveResource(url);
+		}
+		if (url.startsWith(REQUIRE_PATH) && url.endsWith(".js")) {
+			return serveRequire(url);
+		}
+		return respond(null, null, null, 0, false);
+	}
+
+	/**
+	 * @return the running script named by the runtime id a virtual URL
+	 *         starts with after its prefix, if it may serve resources
+	 */
+	private ScriptCriteria findVirtualOwner(ScriptStoreSQLite scriptStore, String url,
+			String prefix, int idEnd) {
+		if (idEnd < 0 || scriptStore == null) {
+			return null;
+		}
+		ScriptCriteria key = scriptStore.findRunningScript(url.substring(prefix.length(), idEnd));
+		if (key == null || key.secret == null || !key.isEnabled()) {
+			return null;
+		}
+		return key;
+	}
+
+	private WebResourceResponse serveRequire(String url) {
+		String hash = url.substring(REQUIRE_PATH.length(), url.length() - 3);
+		ScriptStoreSQLite scriptStore = this.scriptStore;
+		InputStream data = scriptStore == null || hash.indexOf('/') >= 0 ? null
+				: scriptStore.openRequire(hash);
+		if (data == null) {
+			return respond(null, null, null, 0, false);
+		}
+		// inflated as read, the length is not known up front
+		return respond("application/javascript", "UTF-8", data, -1, true);
+	}
+
+	private WebResourceResponse serveResource(String url) {
+		int idEnd = url.indexOf('/', RESOURCE_PATH.length());
+		int tokenEnd = idEnd < 0 ? -1 : url.indexOf('/', idEnd + 1);
+		ScriptStoreSQLite scriptStore = this.scriptStore;
+		ScriptCriteria key = tokenEnd < 0 ? null
+				: findVirtualOwner(scriptStore, url, RESOURCE_PATH, idEnd);
+		if (key == null || !key.hasRightResource()) {
+			return respond(null, null, null, 0, false);
+		}
+		ScriptResource resource = scriptStore.getResources(key, Uri.decode(url.substring(tokenEnd + 1)));
+		File file = resource == null ? null : resource.getFile();
+		if (file == null || !isVirtualToken(key, file.getName(), url.substring(idEnd + 1, tokenEnd))) {
+			return respond(null, null, null, 0, false);
+		}
+		try {
+			return respond(resource.getMimeType(), null, new FileInputStream(file), file.length(), true);
+		} catch (FileNotFoundException e) {
+			Log.e(TAG, "Resource file missing: " + file);
+			return respond(null, null, null, 0, false);
+		}
+	}
+
+	/**
+	 * Builds the response to a virtual URL, streaming data; status and
+	 * headers are only set from Lollipop on.
+	 *
+	 * @param length
+	 *            the length of data, or -1 if unknown
+	 * @param found
+	 *            false to answer 404
+	 */
+	private static WebResourceResponse respond(String mimeType, String encoding,
+			InputStream data, long length, boolean found) {
+		if (!found) {
+			mimeType = "text/plain";
+			data = new ByteArrayInputStream(new byte[0]);
+		}
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+			return new WebResourceResponse(mimeType, encoding, data);
+		}
+		// no Access-Control-Allow-Origin: cross-origin reads of the content fail
+		Map<String, String> headers = new HashMap<String, String>();
+		if (found) {
+			headers.put("Cache-Control", CACHE_FOREVER);
+			if (length >= 0) {
+				headers.put("Content-Length", Long.toString(length));
+			}
+		}
+		return new WebResourceResponse(mimeType, encoding, found ? 200 : 404,
+				found ? "OK" : "Not Found", headers, data);
+	}
+
+	@Override
+	public boolean shouldOverrideUrlLoading(WebView view, WebResourceRequest request) {
+		if (request.isForMainFrame()) {
+			speculate(request.getUrl().toString());
+		}
+		return super.shouldOverrideUrlLoading(view, request.getUrl().toString());
+	}
+
+	@Override
+	public boolean shouldOverrideUrlLoading(WebView view, String url) {
+		// the frame is only known from N on, see above; before, frames mostly
+		// navigate while their page loads, so only speculate after that
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N && !pageLoading) {
+			speculate(url);
+		}
+		return super.shouldOverrideUrlLoading(view, url);
+	}
+
 	@Override
 	public void onPageStarted(WebView view, String url, Bitmap favicon) {
+		consumeSpeculation(url);
+		scheduler.reset(view);
+		pageUrl = url;
+		pageLoading = true;
+		requireFallbacks.clear();
+		// the previous page is gone, write its values behind
+		if (scriptStore != null) {
+			scriptStore.flushValues();
+			scriptStore.clearValueChangeListeners(view);
+		}
 		runMatchingScripts(view, url, false, null, null);
 	}
 
+	@Override
+	public void onPageCommitVisible(WebView view, String url) {
+		scheduler.onPageCommitVisible(view);
+	}
+
 	@Override
 	public void onPageFinished(WebView view, String url) {
+		pageLoading = false;
 		runMatchingScripts(view, url, true, null, null);
+		scheduler.onPageFinished(view);
+	}
+
+	/**
+	 * Suspends or resumes the client, e.g. for a WebView kept alive as a
+	 * hidden tab. Document-start scripts keep running while suspended;
+	 * document-end scripts are queued until the client is resumed. Values
+	 * buffered by user scripts are flushed when the view gets hidden.
+	 *
+	 * @param suspended
+	 *            true if the view is not visible
+	 */
+	public void setSuspended(boolean suspended) {
+		if (suspended && scriptStore != null) {
+			scriptStore.flushValues();
+		}
+		scheduler.setSuspended(suspended);
+	}
+
+	/**
+	 * @return the scheduler of deferred and suspended user scripts
+	 */
+	public InjectionScheduler getScheduler() {
+		return scheduler;
 	}
 
 	/**
@@ -40,6 +40,8 @@ public class WebViewGm extends WebView {
 
 	private WebViewClientGm webViewClient;
 
+	private WebViewGmApi webViewGmApi;
+
 	/**
 	 * Constructs a new WebViewGm initializing it with a scriptStore.
 	 * 
@@ -119,8 +121,10 @@ public class WebViewGm extends WebView {
     @SuppressLint("AddJavascriptInterface")
     public void setScriptStore(ScriptStoreSQLite scriptStore) {
 		this.scriptStore = scriptStore;
-		addJavascriptInterface(new WebViewGmApi(this, scriptStore,
-				webViewClient.getSecret()), JSBRIDGENAME);
+		webViewGmApi = new WebViewGmApi(this, scriptStore,
+				webViewClient.getSecret());
+		webViewGmApi.setWebViewClient(webViewClient);
+		addJavascriptInterface(webViewGmApi, JSBRIDGENAME);
 		webViewClient.setScriptStore(scriptStore);
 	}
 
@@ -137,9 +141,28 @@ public class WebViewGm extends WebView {
 	 */
 	public void setWebViewClient(WebViewClientGm webViewClient) {
 		this.webViewClient = webViewClient;
+		if (webViewGmApi != null) {
+			webViewGmApi.setWebViewClient(webViewClient);
+		}
 		super.setWebViewClient(webViewClient);
 	}
 
+	/**
+	 * Also suspends the injection of document-end user scripts until
+	 * {@link #onResume()}.
+	 */
+	@Override
+	public void onPause() {
+		super.onPause();
+		webViewClient.setSuspended(true);
+	}
+
+	@Override
+	public void onResume() {
+		super.onResume();
+		webViewClient.setSuspended(false);
+	}
+
 	/**
 	 * @return a random string to use in GM API calls
 	 */
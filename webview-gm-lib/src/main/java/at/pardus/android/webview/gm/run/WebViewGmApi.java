@@ -21,10 +21,16 @@ import android.webkit.CookieManager;
 import android.webkit.JavascriptInterface;
 import android.webkit.WebView;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
 import at.pardus.android.webview.gm.model.ScriptCriteria;
 import at.pardus.android.webview.gm.model.ScriptResource;
+import at.pardus.android.webview.gm.model.ScriptStats;
 import at.pardus.android.webview.gm.store.CMN;
 import at.pardus.android.webview.gm.store.ScriptStoreSQLite;
 
@@ -36,10 +42,15 @@ public class WebViewGmApi {
 
 	private static final String TAG = "fatal "+WebViewGmApi.class.getName();
 
+	/** Chars per part of GM_getResourceText, hardcoded in the prelude. */
+	static final int RESOURCE_TEXT_CHUNK = 256 * 1024;
+
 	private WebView view;
 
 	private ScriptStoreSQLite scriptStore;
 
+	private WebViewClientGm webViewClient;
+
 	//private String secret;
 
 	/**
@@ -56,6 +67,75 @@ public class WebViewGmApi {
 		//this.secret = secret;
 	}
 
+	/**
+	 * @param webViewClient
+	 *            the client scheduling user scripts for view
+	 */
+	public void setWebViewClient(WebViewClientGm webViewClient) {
+		this.webViewClient = webViewClient;
+	}
+
+	/**
+	 * Reports an idle slice of the page so that the next deferred user script
+	 * can be evaluated.
+	 *
+	 * @param token
+	 *            the one-shot token the slice was requested with
+	 * @param generation
+	 *            the page generation the slice was requested for
+	 */
+	@JavascriptInterface
+	public void idle(String token, int generation) {
+		WebViewClientGm client = webViewClient;
+		if (client != null) {
+			client.getScheduler().onIdle(token, generation);
+		}
+	}
+
+	/**
+	 * Receives the execution telemetry that a user script collected on a page.
+	 * Scripts that routinely block the main thread are demoted to the deferred
+	 * priority.
+	 *
+	 * @param runtimeId
+	 *            the id of the reporting script
+	 * @param secret
+	 *            the transmitted secret to validate
+	 * @param json
+	 *            {t:[ms, ...], c:[rules, chars]} of the reporting script only,
+	 *            where runs that threw are stored as -1-ms and c counts what
+	 *            GM_addStyle injected
+	 */
+	@JavascriptInterface
+	public void reportStats(String runtimeId, String secret, String json) {
+		ScriptCriteria script = scriptStore.getRunningScript(runtimeId, secret);
+		if (script == null) {
+			return;
+		}
+		try {
+			JSONObject report = new JSONObject(json);
+			JSONArray times = report.optJSONArray("t");
+			int runs = times == null ? 0 : Math.min(times.length(), ScriptStats.MAX_REPORT_RUNS);
+			for (int i = 0; i < runs; i++) {
+				long time = times.optLong(i);
+				script.stats.addRun(time < 0 ? -1 - time : time, time < 0);
+			}
+			JSONArray styles = report.optJSONArray("c");
+			if (styles != null && styles.length() == 2) {
+				script.stats.addStyles(Math.max(0, styles.optInt(0)), Math.max(0, styles.optLong(1)));
+			}
+			script.stats.addReport();
+			if (script.hasRightRunEnd()
+					&& script.getRunPriority() == ScriptCriteria.PRIORITY_CRITICAL
+					&& script.stats.blocksRoutinely()) {
+				Log.w(TAG, "Deferring " + script + ": " + script.stats);
+				scriptStore.setDemoted(script, true);
+			}
+		} catch (Exception e) {
+			CMN.debug(e);
+		}
+	}
+
 	/**
 	 * Equivalent of GM_listValues.
 	 * 
@@ -136,7 +216,7 @@ public class WebViewGmApi {
 		ScriptCriteria script = scriptStore.getRunningScript(runtimeId, secret);
 		if (script!=null && script.hasRightSetValue()) {
 			//CMN.debug("setValue::", name, value==null?-1:value.length(), value);
-			scriptStore.setValue(script, name, value);
+			scriptStore.setValue(script, name, value, view);
 		}
 	}
 
@@ -157,10 +237,197 @@ public class WebViewGmApi {
 	public void deleteValue(String runtimeId, String secret, String name) {
 		ScriptCriteria script = scriptStore.getRunningScript(runtimeId, secret);
 		if (script!=null && script.hasRightDeleteValue()) {
-			scriptStore.deleteValue(script, name);
+			scriptStore.deleteValue(script, name, view);
+		}
+	}
+
+	/**
+	 * Equivalent of GM_addValueChangeListener. The page keeps the listeners
+	 * and subscribes once per value name.
+	 *
+	 * @param runtimeId
+	 *            the id of the calling script
+	 * @param secret
+	 *            the transmitted secret to validate
+	 * @param name
+	 *            the name of the value to listen for
+	 * @return the name of the window property the script defines its
+	 *         dispatcher under, or null if not allowed
+	 */
+	@JavascriptInterface
+	public String addValueChangeListener(String runtimeId, String secret, String name) {
+		ScriptCriteria script = scriptStore.getRunningScript(runtimeId, secret);
+		if (script != null && script.hasRightAddValueChangeListener()) {
+			return scriptStore.addValueChangeListener(view, script, name);
+		}
+		return null;
+	}
+
+	/**
+	 * Equivalent of GM_removeValueChangeListener, called when the last
+	 * listener for a value name is removed.
+	 *
+	 * @param runtimeId
+	 *            the id of the calling script
+	 * @param secret
+	 *            the transmitted secret to validate
+	 * @param name
+	 *            the name of the value not to listen for anymore
+	 */
+	@JavascriptInterface
+	public void removeValueChangeListener(String runtimeId, String secret, String name) {
+		ScriptCriteria script = scriptStore.getRunningScript(runtimeId, secret);
+		if (script != null) {
+			scriptStore.removeValueChangeListener(view, script, name);
 		}
 	}
 
+	/**
+	 * Batch equivalent of GM_getValue.
+	 *
+	 * @param runtimeId
+	 *            the id of the calling script
+	 * @param secret
+	 *            the transmitted secret to validate
+	 * @param names
+	 *            a JSON array of the names of the values to get
+	 * @return a JSON object mapping the names of the values found to them
+	 */
+	@JavascriptInterface
+	public String getValues(String runtimeId, String secret, String names) {
+		ScriptCriteria script = scriptStore.getRunningScript(runtimeId, secret);
+		if (script == null || !script.hasRightGetValue()) {
+			return null;
+		}
+		try {
+			JSONArray array = new JSONArray(names);
+			String[] keys = new String[array.length()];
+			for (int i = 0; i < keys.length; i++) {
+				keys[i] = array.getString(i);
+			}
+			Map<String, String> values = scriptStore.getValues(script, keys);
+			if (values == null) {
+				return null;
+			}
+			StringBuilder sb = new StringBuilder("{");
+			for (Map.Entry<String, String> entry : values.entrySet()) {
+				if (sb.length() > 1) {
+					sb.append(',');
+				}
+				sb.append(JSONObject.quote(entry.getKey())).append(':')
+						.append(JSONObject.quote(entry.getValue()));
+			}
+			return sb.append('}').toString();
+		} catch (Exception e) {
+			CMN.debug(e);
+		}
+		return null;
+	}
+
+	/**
+	 * Batch equivalent of GM_setValue. All values reach the database in a
+	 * single transaction.
+	 *
+	 * @param runtimeId
+	 *            the id of the calling script
+	 * @param secret
+	 *            the transmitted secret to validate
+	 * @param values
+	 *            a JSON object mapping names to the values to set
+	 */
+	@JavascriptInterface
+	public void setValues(String runtimeId, String secret, String values) {
+		ScriptCriteria script = scriptStore.getRunningScript(runtimeId, secret);
+		if (script == null || !script.hasRightSetValue()) {
+			return;
+		}
+		try {
+			JSONObject object = new JSONObject(values);
+			HashMap<String, String> changes = new HashMap<String, String>();
+			Iterator<String> names = object.keys();
+			while (names.hasNext()) {
+				String name = names.next();
+				if (!object.isNull(name)) {
+					changes.put(name, object.getString(name));
+				}
+			}
+			scriptStore.setValues(script, changes, view);
+		} catch (Exception e) {
+			CMN.debug(e);
+		}
+	}
+
+	/**
+	 * Batch equivalent of GM_deleteValue.
+	 *
+	 * @param runtimeId
+	 *            the id of the calling script
+	 * @param secret
+	 *            the transmitted secret to validate
+	 * @param names
+	 *            a JSON array of the names of the values to delete
+	 */
+	@JavascriptInterface
+	public void deleteValues(String runtimeId, String secret, String names) {
+		ScriptCriteria script = scriptStore.getRunningScript(runtimeId, secret);
+		if (script == null || !script.hasRightDeleteValue()) {
+			return;
+		}
+		try {
+			JSONArray array = new JSONArray(names);
+			HashMap<String, String> changes = new HashMap<String, String>();
+			for (int i = 0; i < array.length(); i++) {
+				changes.put(array.getString(i), null);
+			}
+			scriptStore.setValues(script, changes, view);
+		} catch (Exception e) {
+			CMN.debug(e);
+		}
+	}
+
+	/**
+	 * Writes back the changes a script made on the value snapshot shipped with
+	 * its payload, batched into a single call. With an empty batch it only
+	 * checks whether the snapshot is still current.
+	 *
+	 * @param runtimeId
+	 *            the id of the calling script
+	 * @param secret
+	 *            the transmitted secret to validate
+	 * @param baseVersion
+	 *            the version of the snapshot the changes were made on
+	 * @param changes
+	 *            an object mapping names to new values, null to delete one
+	 * @return the new version if the snapshot is current, otherwise a fresh
+	 *         snapshot
+	 */
+	@JavascriptInterface
+	public String flushValues(String runtimeId, String secret, int baseVersion, String changes) {
+		ScriptCriteria script = scriptStore.getRunningScript(runtimeId, secret);
+		if (script == null || !script.hasRightGetValue()) {
+			return null;
+		}
+		HashMap<String, String> values = new HashMap<String, String>();
+		try {
+			JSONObject batch = new JSONObject(changes);
+			Iterator<String> names = batch.keys();
+			while (names.hasNext()) {
+				String name = names.next();
+				if (batch.isNull(name)) {
+					if (script.hasRightDeleteValue()) {
+						values.put(name, null);
+					}
+				} else if (script.hasRightSetValue()) {
+					values.put(name, batch.getString(name));
+				}
+			}
+		} catch (Exception e) {
+			CMN.debug(e);
+			return null;
+		}
+		return scriptStore.applyValues(script, baseVersion, values, view);
+	}
+
 	/**
 	 * Equivalent of GM_log. Output in Android log.
 	 * 
@@ -202,8 +469,10 @@ public class WebViewGmApi {
 		if (script!=null && script.hasRightResource()) {
 			try {
 				ScriptResource resource = scriptStore.getResources(script, resourceName);
+				WebViewClientGm client = webViewClient;
 				if (resource != null) {
-					return resource.getJavascriptUrl(); // todo safety
+					return client != null ? client.getResourceUrl(script, resource)
+							: resource.getJavascriptUrl();
 				}
 				Log.e(TAG, "Requested resource: " + resourceName + " not found!");
 			} catch (Exception e) {
@@ -213,6 +482,30 @@ public class WebViewGmApi {
 		return "";
 	}
 
+	/**
+	 * Evaluates a user script with its @require'd scripts inlined after the
+	 * page failed to load them from their virtual URLs.
+	 *
+	 * @param runtimeId
+	 *            the id of the calling script
+	 * @param secret
+	 *            the transmitted secret to validate
+	 */
+	@JavascriptInterface
+	public void requireFallback(String runtimeId, String secret) {
+		final ScriptCriteria script = scriptStore.getRunningScript(runtimeId, secret);
+		final WebViewClientGm client = webViewClient;
+		if (script == null || client == null) {
+			return;
+		}
+		view.post(new Runnable() {
+			@Override
+			public void run() {
+				client.runScriptInline(view, script);
+			}
+		});
+	}
+
 	/**
 	 * Equivalent of GM_getResourceText. Retrieve @resource'd data. as UTF-8
 	 * encoded text.
@@ -232,9 +525,61 @@ public class WebViewGmApi {
 		ScriptCriteria script = scriptStore.getRunningScript(runtimeId, secret);
 		if (script!=null && script.hasRightResource()) {
 			try {
-				ScriptResource resource = scriptStore.getResources(script, resourceName);
-				if (resource != null) {
-					return resource.getJavascriptString();
+				String text = scriptStore.getResourceText(script, resourceName);
+				if (text != null) {
+					return text;
+				}
+			} catch (Exception e) {
+				CMN.debug(e);
+			}
+		}
+		return "";
+	}
+
+	/**
+	 * Gets part of @resource'd data as UTF-8 text, so that large resources
+	 * do not cross the bridge as one huge string. The first part is prefixed
+	 * with the length of the text and a colon; GM_getResourceText asks for
+	 * the next part until it has that many chars. The text stays pinned
+	 * from the first part to the last.
+	 *
+	 * @param runtimeId
+	 *            the id of the calling script
+	 * @param secret
+	 *            the transmitted secret to validate
+	 * @param resourceName
+	 *            the name of the resource
+	 * @param offset
+	 *            the index of the first char to get
+	 * @return up to {@link #RESOURCE_TEXT_CHUNK} chars, one less if the last
+	 *         one would split a surrogate pair; empty if there are none
+	 */
+	@JavascriptInterface
+	public String getResourceTextChunk(String runtimeId, String secret, String resourceName,
+			int offset) {
+		ScriptCriteria script = scriptStore.getRunningScript(runtimeId, secret);
+		if (script!=null && script.hasRightResource()) {
+			try {
+				String text = scriptStore.getResourceText(script, resourceName);
+				if (text != null && offset == 0) {
+					int end = Math.min(text.length(), RESOURCE_TEXT_CHUNK);
+					if (end < text.length()) {
+						if (Character.isHighSurrogate(text.charAt(end - 1))) {
+							end--;
+						}
+						scriptStore.pinResourceText(script, resourceName, text);
+					}
+					return text.length() + ":" + text.substring(0, end);
+				}
+				if (text != null && offset > 0 && offset < text.length()) {
+					int end = Math.min(text.length(), offset + RESOURCE_TEXT_CHUNK);
+					if (end < text.length() && Character.isHighSurrogate(text.charAt(end - 1))) {
+						end--;
+					} else if (end == text.length()) {
+						// the last chunk, the pin of this read can go
+						scriptStore.releaseResourceText(script, resourceName);
+					}
+					return text.substring(offset, end);
 				}
 			} catch (Exception e) {
 				CMN.debug(e);
@@ -20,33 +20,92 @@ import android.app.Activity;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
 import android.util.Log;
+import android.webkit.WebView;
 
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import at.pardus.android.webview.gm.model.Script;
 import at.pardus.android.webview.gm.model.ScriptCriteria;
 import at.pardus.android.webview.gm.model.ScriptId;
 import at.pardus.android.webview.gm.model.ScriptRequire;
 import at.pardus.android.webview.gm.model.ScriptResource;
+import at.pardus.android.webview.gm.model.ScriptStats;
+import at.pardus.android.webview.gm.util.DownloadHelper;
 
 /**
  * Implements a ScriptStore using an SQLite database to persist user scripts and
  * values.
  * 
  * Uses an LRU cache of user scripts matching URLs and a cache of all available
- * and enabled user script matching criteria to improve performance.
+ * and enabled user script matching criteria to improve performance. Values of
+ * user scripts are read through a {@link ValueCache} and written behind
+ * through a {@link ValueBuffer}; a {@link ValueChangeBus} tells listening
+ * pages about changes. Script writes run on a single writer thread, either
+ * waited for or through the futures of the *Async methods and
+ * {@link #batch}.
  */
 public class ScriptStoreSQLite /*implements ScriptStore*/ {
 
@@ -54,9 +113,46 @@ public class ScriptStoreSQLite /*implements ScriptStore*/ {
 
 	private Activity context;
 
-	private ScriptDbHelper dbHelper;
+	/** Set once open has finished in the background, after all else it sets up. */
+	private volatile ScriptDbHelper dbHelper;
+
+	/** The open running or done on the writer thread; null if not opened. */
+	private volatile FutureTask<Void> ready;
+
+	/** Callbacks of {@link #whenReady} waiting for the open to finish. */
+	private final ArrayList<Runnable> readyCallbacks = new ArrayList<Runnable>();
 
 	private ScriptCache cache;
+
+	private ValueBuffer valueBuffer;
+
+	private ValueCache valueCache;
+
+	private final ResourceTextCache resourceTexts = new ResourceTextCache();
+
+	private final ValueChangeBus valueChangeBus = new ValueChangeBus();
+
+	/** Null before open and after close. */
+	private volatile ScheduledExecutorService writer;
+
+	/** Runs the downloads an install finds missing, off the writer. */
+	private ExecutorService installer;
+
+	/** The thread of {@link #writer}, on which submitted writes run in place. */
+	private volatile Thread writerThread;
+
+	private final WriterStats writerStats = new WriterStats();
+
+	private final BridgeStats bridgeStats = new BridgeStats();
+
+	/** Whether a write of the registry snapshot is scheduled. */
+	private final AtomicBoolean snapshotPending = new AtomicBoolean();
+
+	/** Invalidations held back until the batch on the writer thread commits. */
+	private ArrayList<Object[]> batchInvalidations;
+
+	/** Invalidations of other threads waiting to be applied on the UI thread. */
+	private final ConcurrentLinkedQueue<Object[]> pendingInvalidations = new ConcurrentLinkedQueue<Object[]>();
 	
 	public final StringBuilder buffer = new StringBuilder();
 	public final LinkedHashMap<ScriptCriteria, String> bufferedScript = new LinkedHashMap<ScriptCriteria, String>(
@@ -68,32 +164,45 @@ public class ScriptStoreSQLite /*implements ScriptStore*/ {
 		}
 	};
 	
-	public final HashMap<ScriptCriteria, ScriptCriteria> registryMap = new HashMap<>(1024);
-	public final ArrayList<ScriptCriteria> registry = new ArrayList<>(1024);
+	/** The current version of the registered scripts, read without locking. */
+	private volatile Registry registry = Registry.EMPTY;
+
+	/** Held by writers while building the next version of {@link #registry}. */
+	private final Object registryLock = new Object();
 	
 	final static boolean debug = false;
+	
+	private volatile int cacheGeneration;
 
 	// @Override
 	public ScriptCriteria[] get(String url, boolean enabled, boolean metaOnly) {
+		if (dbHelper == null) {
+			Log.w(TAG, "Cannot get user scripts (database not ready)");
+			return null;
+		}
 		// get matchingScripts to run
 		ScriptCriteria[] scripts = cache.get(url);
 		if (scripts == null) {
-			if (dbHelper == null) {
-				Log.w(TAG, "Cannot get user scripts");
-				return null;
-			}
+			// read before the registry, see doInvalidateCache
+			int generation = cacheGeneration;
 			List<ScriptCriteria> matches = new ArrayList<ScriptCriteria>();
-			for (ScriptCriteria c : registry) { // getMatchingScriptIds
-				if (!enabled || c.isEnabled()) {
+			for (ScriptCriteria c : registry.slots) { // getMatchingScriptIds
+				if (c != null && (!enabled || c.isEnabled())) {
 					if (c.testUrl(url)) {
 						matches.add(c);
 					}
 				}
 			}
 			ScriptCriteria[] matchingIds = matches.toArray(new ScriptCriteria[matches.size()]);
-			CMN.debug("registry::", registry);
+			CMN.debug("registry::", registry.byId.values());
 			CMN.debug("matchingIds::", Arrays.toString(matchingIds));
-			cache.put(url, scripts = matchingIds);
+			scripts = matchingIds;
+			synchronized (cache) {
+				// not if the registry changed while matching
+				if (generation == cacheGeneration) {
+					cache.put(url, matchingIds);
+				}
+			}
 		}
 		return scripts;
 	}
@@ -120,10 +229,78 @@ public class ScriptStoreSQLite /*implements ScriptStore*/ {
         return dbHelper.selectScripts(null, null, metaOnly);
 	}
 
-	/** ret -1 : fail   0 : added  1 : edited */
+	/** ret negative : fail   0 : added  1 : edited */
 	// @Override
 	//@AnyThread
 	public int add(Script script) {
+		return applied(await(addAsync(script), -1));
+	}
+
+	/**
+	 * Installs or updates a user script on the writer thread. Should a
+	 * @require known when the script was parsed be gone by then, it is
+	 * downloaded on the installer thread and the install retried.
+	 *
+	 * @return a future of a negative value on failure, 0 if added and 1 if
+	 *         edited
+	 */
+	public Future<Integer> addAsync(final Script script) {
+		final Future<Integer> added = submit(new Callable<Integer>() {
+			@Override
+			public Integer call() {
+				return doAdd(script);
+			}
+		});
+		ExecutorService installer = this.installer;
+		if (installer == null || Thread.currentThread() == writerThread) {
+			// cannot wait for itself, e.g. inside a batch
+			return added;
+		}
+		return installer.submit(new Callable<Integer>() {
+			@Override
+			public Integer call() {
+				int result = await(added, -1);
+				if (result != ScriptDbHelper.REQUIRE_GONE) {
+					return result;
+				}
+				// no network I/O on the writer, let alone inside its transaction
+				if (!downloadRequires(script)) {
+					return -1;
+				}
+				return await(submit(new Callable<Integer>() {
+					@Override
+					public Integer call() {
+						return doAdd(script);
+					}
+				}), -1);
+			}
+		});
+	}
+
+	/**
+	 * Downloads the @require'd scripts a parse left to the store.
+	 *
+	 * @return false if a download failed
+	 */
+	private static boolean downloadRequires(Script script) {
+		ScriptRequire[] requires = script.getRequires();
+		if (requires == null) {
+			return true;
+		}
+		for (ScriptRequire require : requires) {
+			if (require.getContent() == null) {
+				String content = DownloadHelper.downloadScript(require.getUrl());
+				if (content == null) {
+					Log.e(TAG, "Error downloading " + require.getUrl());
+					return false;
+				}
+				require.setContent(content);
+			}
+		}
+		return true;
+	}
+
+	private int doAdd(Script script) {
 		// install or update
 		if (dbHelper == null) {
 			Log.e(TAG, "Cannot add user script (database not available)");
@@ -142,42 +319,120 @@ public class ScriptStoreSQLite /*implements ScriptStore*/ {
 			CMN.debug(e);
 		}
 		//dbHelper.deleteScript(script);
-		if (dbHelper.insertScript(script, rowId) != -1) {
+		int inserted = dbHelper.insertScript(script, rowId);
+		if (inserted >= 0) {
+			gcResourceFilesSoon();
 			invalidateCache(script, false);
 			return rowId == -1 ? 0 : 1;
 		} else {
-			return -1;
+			return inserted == ScriptDbHelper.REQUIRE_GONE ? inserted : -1;
 		}
 	}
 
 	// @Override
 	public void enable(ScriptId id) { // todo 更新从表
-		if (dbHelper == null) {
-			Log.e(TAG, "Cannot enable user script (database not available)");
-			return;
-		}
-		dbHelper.updateScriptEnabled(id, true);
-		invalidateCache(id, false);
+		applied(await(enableAsync(id), null));
+	}
+
+	/**
+	 * Enables a user script on the writer thread.
+	 */
+	public Future<Void> enableAsync(ScriptId id) {
+		return setEnabledAsync(id, true);
 	}
 
 	// @Override
 	public void disable(ScriptId id) {
-		if (dbHelper == null) {
-			Log.e(TAG, "Cannot disable user script (database not available)");
-			return;
-		}
-		dbHelper.updateScriptEnabled(id, false);
-		invalidateCache(id, false);
+		applied(await(disableAsync(id), null));
+	}
+
+	/**
+	 * Disables a user script on the writer thread.
+	 */
+	public Future<Void> disableAsync(ScriptId id) {
+		return setEnabledAsync(id, false);
+	}
+
+	private Future<Void> setEnabledAsync(final ScriptId id, final boolean enabled) {
+		return submit(new Callable<Void>() {
+			@Override
+			public Void call() {
+				if (dbHelper == null) {
+					Log.e(TAG, "Cannot " + (enabled ? "enable" : "disable")
+							+ " user script (database not available)");
+					return null;
+				}
+				dbHelper.updateScriptEnabled(id, enabled);
+				if (enabled) {
+					// enabled by hand, give it another chance
+					updateDemoted(id, false);
+				}
+				invalidateCache(id, false);
+				return null;
+			}
+		});
 	}
 
 	// @Override
 	public void delete(ScriptId id) {
-		if (dbHelper == null) {
-			Log.e(TAG, "Cannot delete user script (database not available)");
+		applied(await(deleteAsync(id), null));
+	}
+
+	/**
+	 * Deletes a user script and its values on the writer thread.
+	 */
+	public Future<Void> deleteAsync(final ScriptId id) {
+		return submit(new Callable<Void>() {
+			@Override
+			public Void call() {
+				if (dbHelper == null) {
+					Log.e(TAG, "Cannot delete user script (database not available)");
+					return null;
+				}
+				valueCache.drop(id);
+				dbHelper.deleteScript(id);
+				gcResourceFilesSoon();
+				invalidateCache(id, true);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Defers a user script after its telemetry, or undoes that, and persists
+	 * it along with its rights on the writer thread; the registry reflects
+	 * it once the write has committed. The priority declared by @run-at is
+	 * kept, and an update or re-enable clears the demotion.
+	 *
+	 * @param id
+	 *            the ID of the script to update
+	 * @param demoted
+	 *            whether to inject it as {@link ScriptCriteria#PRIORITY_DEFERRED}
+	 */
+	public Future<Void> setDemoted(final ScriptId id, final boolean demoted) {
+		return submit(new Callable<Void>() {
+			@Override
+			public Void call() {
+				if (dbHelper == null) {
+					Log.e(TAG, "Cannot demote user script (database not available)");
+					return null;
+				}
+				updateDemoted(id, demoted);
+				return null;
+			}
+		});
+	}
+
+	private void updateDemoted(ScriptId id, boolean demoted) {
+		ScriptCriteria stored = registry.get(id);
+		if (stored == null || stored.isDemoted() == demoted) {
 			return;
 		}
-		dbHelper.deleteScript(id);
-		invalidateCache(id, true);
+		ScriptCriteria changed = stored.copy();
+		changed.isDemoted(demoted);
+		dbHelper.updateScriptRights(id, changed.rights);
+		// re-registered from the committed row
+		invalidateCache(id, false);
 	}
 
 	// @Override
@@ -186,7 +441,7 @@ public class ScriptStoreSQLite /*implements ScriptStore*/ {
 			Log.e(TAG, "Cannot get value names (database not available)");
 			return null;
 		}
-		return dbHelper.selectValueNames(id);
+		return valueCache.getNames(id);
 	}
 
 	// @Override
@@ -195,25 +450,371 @@ public class ScriptStoreSQLite /*implements ScriptStore*/ {
 			Log.e(TAG, "Cannot get value (database not available)");
 			return null;
 		}
-		return dbHelper.selectValue(id, name);
+		return valueCache.get(id, name);
 	}
 
 	// @Override
 	public void setValue(ScriptId id, String name, String value) {
+		setValue(id, name, value, null);
+	}
+
+	/**
+	 * @param source
+	 *            the view whose script set the value, for value change
+	 *            listeners to tell local from remote changes (may be null)
+	 */
+	public void setValue(ScriptId id, String name, String value, WebView source) {
 		if (dbHelper == null) {
 			Log.e(TAG, "Cannot set value (database not available)");
 			return;
 		}
-		dbHelper.updateOrInsertValue(id, name, value);
+		valueCache.put(id, name, value, source);
 	}
 
 	// @Override
 	public void deleteValue(ScriptId id, String name) {
+		deleteValue(id, name, null);
+	}
+
+	/**
+	 * @param source
+	 *            the view whose script deleted the value (may be null)
+	 */
+	public void deleteValue(ScriptId id, String name, WebView source) {
 		if (dbHelper == null) {
 			Log.e(TAG, "Cannot delete value (database not available)");
 			return;
 		}
-		dbHelper.deleteValue(id, name);
+		valueCache.put(id, name, ValueBuffer.DELETED, source);
+	}
+
+	/**
+	 * Sets a value on the writer thread, in order with the other writes
+	 * submitted there. Reads see the value once the future is done.
+	 */
+	public Future<Void> setValueAsync(final ScriptId id, final String name, final String value) {
+		return submit(new Callable<Void>() {
+			@Override
+			public Void call() {
+				setValue(id, name, value, null);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Deletes a value on the writer thread, in order with the other writes
+	 * submitted there.
+	 */
+	public Future<Void> deleteValueAsync(final ScriptId id, final String name) {
+		return submit(new Callable<Void>() {
+			@Override
+			public Void call() {
+				deleteValue(id, name, null);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Runs bulk work on the writer thread inside one transaction. Store
+	 * writes made by the work, e.g. {@link #add} or {@link #delete}, run in
+	 * place and join the transaction; the caches are invalidated once it is
+	 * committed. If any of them fails or the work throws, all of it is
+	 * rolled back.
+	 */
+	public Future<Void> batch(final Runnable work) {
+		return submit(new Callable<Void>() {
+			@Override
+			public Void call() {
+				if (dbHelper == null) {
+					Log.e(TAG, "Cannot run batch (database not available)");
+					return null;
+				}
+				SQLiteDatabase db = dbHelper.db;
+				ArrayList<Object[]> invalidations = batchInvalidations = new ArrayList<Object[]>();
+				db.beginTransaction();
+				try {
+					work.run();
+					db.setTransactionSuccessful();
+				} finally {
+					db.endTransaction();
+					batchInvalidations = null;
+					for (Object[] invalidation : invalidations) {
+						invalidateCache((ScriptId) invalidation[0], (Boolean) invalidation[1]);
+					}
+				}
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Queues the garbage collection of resource files behind the current
+	 * write, so that it runs once that write and any batch around it are
+	 * committed.
+	 */
+	private void gcResourceFilesSoon() {
+		ScheduledExecutorService writer = this.writer;
+		if (writer == null) {
+			return;
+		}
+		writer.execute(new WriteTask<Void>(new Callable<Void>() {
+			@Override
+			public Void call() {
+				ScriptDbHelper dbHelper = ScriptStoreSQLite.this.dbHelper;
+				if (dbHelper != null) {
+					dbHelper.gcResourceFiles();
+				}
+				return null;
+			}
+		}, writerStats, true));
+	}
+
+	/**
+	 * Schedules a pass of the background deflation of content stored plain
+	 * before V16, which schedules the next one until none is left.
+	 */
+	private void deflateSoon(long delay) {
+		ScheduledExecutorService writer = this.writer;
+		if (writer == null) {
+			return;
+		}
+		writer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				ScriptDbHelper dbHelper = ScriptStoreSQLite.this.dbHelper;
+				if (dbHelper == null) {
+					return;
+				}
+				try {
+					if (dbHelper.deflatePlainRows(ScriptDbHelper.DEFLATE_BATCH) > 0) {
+						deflateSoon(DEFLATE_PAUSE);
+					}
+				} catch (SQLiteException e) {
+					Log.e(TAG, "Error deflating stored content", e);
+				}
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Runs a write on the writer thread, or in place if already on it.
+	 */
+	private <T> Future<T> submit(Callable<T> write) {
+		ScheduledExecutorService writer = this.writer;
+		if (writer == null || Thread.currentThread() == writerThread) {
+			WriteTask<T> task = new WriteTask<T>(write, writerStats, false);
+			task.run();
+			return task;
+		}
+		WriteTask<T> task = new WriteTask<T>(write, writerStats, true);
+		try {
+			writer.execute(task);
+		} catch (RejectedExecutionException e) {
+			// closed meanwhile, fails like any write after close
+			task.run();
+		}
+		return task;
+	}
+
+	/**
+	 * Waits for a write submitted by a synchronous store method. Blocks behind
+	 * all queued writes, so UI code should prefer the async variants together
+	 * with {@link #whenWritten}.
+	 */
+	private static <T> T await(Future<T> future, T failed) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			Log.e(TAG, "Error writing to the database", e.getCause());
+		}
+		return failed;
+	}
+
+	/**
+	 * Applies the invalidations of a finished write right away when called on
+	 * the UI thread, which could not run the ones posted to it while waiting,
+	 * so that the registry reflects the write on return.
+	 *
+	 * @return the result of the write
+	 */
+	private <T> T applied(T result) {
+		if (Thread.currentThread().getId() == CMN.mid) {
+			applyInvalidations();
+		}
+		return result;
+	}
+
+	/**
+	 * Runs a callback on the UI thread once the writes submitted so far are
+	 * done and the registry reflects them.
+	 */
+	public void whenWritten(final Runnable callback) {
+		submit(new Callable<Void>() {
+			@Override
+			public Void call() {
+				context.runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						applyInvalidations();
+						callback.run();
+					}
+				});
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * @return the number of writes waiting for the writer thread
+	 */
+	public int getWriterQueueDepth() {
+		return writerStats.getQueueDepth();
+	}
+
+	/**
+	 * @return a summary of the writer thread's queue and latencies for
+	 *         diagnostics
+	 */
+	public String getWriterStats() {
+		return writerStats.toString();
+	}
+
+	/**
+	 * Serializes the values of a script for a snapshot shipped with its
+	 * payload, as <code>{"v":version,"d":{name:value}}</code> where every value
+	 * is the stored JSON string.
+	 *
+	 * @param out
+	 *            the builder to append the snapshot to
+	 * @return false if the values are too large to be shipped
+	 */
+	public boolean getValueSnapshot(ScriptId id, StringBuilder out) {
+		if (dbHelper == null) {
+			Log.e(TAG, "Cannot get values (database not available)");
+			return false;
+		}
+		return valueCache.snapshot(id, out);
+	}
+
+	/**
+	 * Applies a batch of changes made on a snapshot of a script's values.
+	 *
+	 * @param baseVersion
+	 *            the version of the values the changes were made on
+	 * @param changes
+	 *            the new values per name, null to delete a value
+	 * @param source
+	 *            the view whose script made the changes (may be null)
+	 * @return the new version if no one else changed the values since
+	 *         baseVersion, otherwise a fresh snapshot as with
+	 *         {@link #getValueSnapshot}
+	 */
+	public String applyValues(ScriptId id, int baseVersion, Map<String, String> changes,
+			WebView source) {
+		if (dbHelper == null) {
+			Log.e(TAG, "Cannot set values (database not available)");
+			return null;
+		}
+		return valueCache.apply(id, baseVersion, toBuffered(changes), source);
+	}
+
+	/**
+	 * Gets several values of a script at once.
+	 *
+	 * @param names
+	 *            the names of the values
+	 * @return the values found per name
+	 */
+	public Map<String, String> getValues(ScriptId id, String[] names) {
+		if (dbHelper == null) {
+			Log.e(TAG, "Cannot get values (database not available)");
+			return null;
+		}
+		return valueCache.getAll(id, names);
+	}
+
+	/**
+	 * Sets and deletes several values of a script at once. The changes reach
+	 * the database in a single transaction.
+	 *
+	 * @param changes
+	 *            the new values per name, null to delete a value
+	 * @param source
+	 *            the view whose script made the changes (may be null)
+	 */
+	public void setValues(ScriptId id, Map<String, String> changes, WebView source) {
+		if (dbHelper == null) {
+			Log.e(TAG, "Cannot set values (database not available)");
+			return;
+		}
+		valueCache.putAll(id, toBuffered(changes), source);
+	}
+
+	/**
+	 * Subscribes a view to the changes of a value of a script, on behalf of
+	 * GM_addValueChangeListener.
+	 *
+	 * @return the name of the window property the changes are delivered to,
+	 *         drawn anew for each page and script
+	 */
+	public String addValueChangeListener(WebView view, ScriptCriteria script, String name) {
+		return valueChangeBus.subscribe(view, script, name);
+	}
+
+	/**
+	 * Ends a subscription made by {@link #addValueChangeListener}.
+	 */
+	public void removeValueChangeListener(WebView view, ScriptId script, String name) {
+		valueChangeBus.unsubscribe(view, script, name);
+	}
+
+	/**
+	 * Ends all subscriptions of a view and drops the changes not yet
+	 * delivered to it. Called when a new page starts loading.
+	 */
+	public void clearValueChangeListeners(WebView view) {
+		valueChangeBus.clear(view);
+	}
+
+	private static Map<String, String> toBuffered(Map<String, String> changes) {
+		for (Map.Entry<String, String> entry : changes.entrySet()) {
+			if (entry.getValue() == null) {
+				entry.setValue(ValueBuffer.DELETED);
+			}
+		}
+		return changes;
+	}
+
+	/**
+	 * @return a summary of the value cache for diagnostics
+	 */
+	public String getValueCacheStats() {
+		ValueCache valueCache = this.valueCache;
+		return valueCache == null ? null : valueCache.getStats();
+	}
+
+	/**
+	 * @return run counts and times of the hot database statements for
+	 *         diagnostics
+	 */
+	public String getDbStats() {
+		ScriptDbHelper dbHelper = this.dbHelper;
+		return dbHelper == null ? null : dbHelper.getStats();
+	}
+
+	/**
+	 * Writes the values buffered so far to the database soon, e.g. because a
+	 * page is left or hidden.
+	 */
+	public void flushValues() {
+		ValueBuffer valueBuffer = this.valueBuffer;
+		if (valueBuffer != null) {
+			valueBuffer.flushSoon();
+		}
 	}
 	
 	
@@ -224,6 +825,44 @@ public class ScriptStoreSQLite /*implements ScriptStore*/ {
 		return dbHelper.scriptHasRequire(scriptId, requiredUrl, true);
 	}
 
+	/**
+	 * @return true if content for the @require URL is stored for any script,
+	 *         so that installs need not download it again
+	 */
+	public boolean isRequireKnown(String requiredUrl) {
+		if (dbHelper == null) {
+			return false;
+		}
+		return dbHelper.isRequireKnown(requiredUrl);
+	}
+
+	/**
+	 * Opens the content of a @require'd script by the hash it is stored
+	 * under, to serve it without reading it as a whole.
+	 *
+	 * @return the content as UTF-8 or null if no script requires it
+	 */
+	public InputStream openRequire(String hash) {
+		ScriptDbHelper dbHelper = this.dbHelper;
+		if (dbHelper == null) {
+			return null;
+		}
+		return dbHelper.openRequire(hash);
+	}
+
+	/**
+	 * Appends the content of a @require'd script that was too large to be
+	 * loaded with its script. It is read in segments to stay clear of the
+	 * CursorWindow limit, but out ends up holding all of it; serve it with
+	 * {@link #openRequire} where the whole text is not needed.
+	 */
+	public void appendRequireText(String hash, StringBuilder out) {
+		ScriptDbHelper dbHelper = this.dbHelper;
+		if (dbHelper != null) {
+			dbHelper.appendRequireText(hash, out);
+		}
+	}
+
 	public boolean scriptHasResource(ScriptId scriptId, String resourceName) {
 		if (dbHelper == null) {
 			return false;
@@ -256,30 +895,171 @@ public class ScriptStoreSQLite /*implements ScriptStore*/ {
 //		initCache();
 //	}
 
-	public synchronized void open(String name) {
-		if (dbHelper != null) {
-			return;
+	/**
+	 * Opens access to the database in the background: creating or upgrading
+	 * it, replaying buffered values and loading the criteria all run on the
+	 * writer thread, ahead of any write submitted meanwhile.
+	 *
+	 * @return a future done once the store is ready
+	 */
+	public synchronized Future<Void> open(final String name) {
+		if (ready != null) {
+			return ready;
 		}
-		try {
-			dbHelper = new ScriptDbHelper(this, name);
-		} catch (Exception e) {
+		if (writer == null) {
+			ScheduledThreadPoolExecutor writer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "gm-db-writer");
+					thread.setDaemon(true);
+					writerThread = thread;
+					return thread;
+				}
+			});
+			// delayed passes and flushes are done by close or dropped
+			writer.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+			this.writer = writer;
+			installer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "gm-installer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		ready = new FutureTask<Void>(new Callable<Void>() {
+			@Override
+			public Void call() {
+				doOpen(name);
+				return null;
+			}
+		});
+		writer.execute(ready);
+		return ready;
+	}
+
+	private void doOpen(String name) {
+		long start = System.nanoTime();
+		ScriptDbHelper helper;
+		try {
+			helper = new ScriptDbHelper(this, name);
+		} catch (Exception e) {
 			DB_VERSION++;
 			CMN.debug(e);
-			dbHelper = new ScriptDbHelper(this, name);
+			helper = new ScriptDbHelper(this, name);
+		}
+		valueBuffer = new ValueBuffer(this, new File(helper.db.getPath() + "-values"));
+		valueBuffer.replay(helper);
+		valueCache = new ValueCache(this);
+		initCache(helper);
+		dbHelper = helper;
+		CMN.debug("open::", (System.nanoTime() - start) / 1000000, "ms");
+		ArrayList<Runnable> callbacks;
+		synchronized (readyCallbacks) {
+			callbacks = new ArrayList<Runnable>(readyCallbacks);
+			readyCallbacks.clear();
+		}
+		for (Runnable callback : callbacks) {
+			context.runOnUiThread(callback);
+		}
+		deflateSoon(DEFLATE_DELAY);
+	}
+
+	/**
+	 * @return true if open has finished and the store can be used
+	 */
+	public boolean isReady() {
+		return dbHelper != null;
+	}
+
+	/**
+	 * Waits for a running open to finish.
+	 *
+	 * @param timeout
+	 *            the maximum time to wait in ms
+	 * @return true if the store is ready
+	 */
+	public boolean awaitReady(long timeout) {
+		FutureTask<Void> ready = this.ready;
+		if (dbHelper != null || ready == null) {
+			return dbHelper != null;
+		}
+		try {
+			ready.get(timeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			Log.e(TAG, "Error opening the database", e.getCause());
+		} catch (TimeoutException ignored) {
+		}
+		return dbHelper != null;
+	}
+
+	/**
+	 * Runs a callback on the UI thread once the store is ready, right away
+	 * if it already is. Callbacks of an open that fails are dropped.
+	 */
+	public void whenReady(Runnable callback) {
+		synchronized (readyCallbacks) {
+			if (dbHelper == null) {
+				readyCallbacks.add(callback);
+				return;
+			}
 		}
-		initCache();
+		context.runOnUiThread(callback);
 	}
 
 	/**
-	 * Closes access to the database.
+	 * Closes access to the database: the close runs as the last task of the
+	 * writer thread, after the writes queued before it, and the writer is
+	 * shut down with it.
 	 * 
 	 * Synchronized since the database may be in the process of being opened in
 	 * a different thread.
 	 */
 	public synchronized void close() {
-		File f = new File(dbHelper.db.getPath());
-		dbHelper.close();
-		dbHelper = null;
+		if (ready == null) {
+			return;
+		}
+		ready = null;
+		ScheduledExecutorService writer = this.writer;
+		ExecutorService installer = this.installer;
+		// later writes run in place against the closed store and fail
+		this.writer = null;
+		this.installer = null;
+		installer.shutdown();
+		FutureTask<File> closed = new FutureTask<File>(new Callable<File>() {
+			@Override
+			public File call() {
+				ScriptDbHelper helper = dbHelper;
+				if (helper == null) {
+					// the open failed
+					return null;
+				}
+				valueBuffer.close();
+				if (snapshotPending.getAndSet(false)) {
+					helper.writeRegistrySnapshot();
+				}
+				dbHelper = null;
+				File f = new File(helper.db.getPath());
+				helper.close();
+				return f;
+			}
+		});
+		writer.execute(closed);
+		writer.shutdown();
+		File f = null;
+		try {
+			f = closed.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			Log.e(TAG, "Error closing the database", e.getCause());
+		}
+		if (f == null) {
+			return;
+		}
 		
 		if (debug) {
 			try {
@@ -316,76 +1096,242 @@ public class ScriptStoreSQLite /*implements ScriptStore*/ {
 	}
 	
 	private void invalidateCache(ScriptId script, boolean delete) {
+		snapshotSoon();
+		if (batchInvalidations != null && Thread.currentThread() == writerThread) {
+			// other connections only see the batch once it is committed
+			batchInvalidations.add(new Object[] { script, delete });
+			return;
+		}
 		if (Thread.currentThread().getId() == CMN.mid) {
+			applyInvalidations();
 			doInvalidateCache(script, delete);
 		} else {
+			pendingInvalidations.add(new Object[] { script, delete });
 			context.runOnUiThread(new Runnable() {
 				@Override
 				public void run() {
-					doInvalidateCache(script, delete);
+					applyInvalidations();
 				}
 			});
 		}
 	}
+
+	/**
+	 * Applies the invalidations posted by other threads, in order, on the UI
+	 * thread; by whichever comes first of the posted runnable and a
+	 * synchronous write returning.
+	 */
+	private void applyInvalidations() {
+		Object[] invalidation;
+		while ((invalidation = pendingInvalidations.poll()) != null) {
+			doInvalidateCache((ScriptId) invalidation[0], (Boolean) invalidation[1]);
+		}
+	}
 	
 	private void doInvalidateCache(ScriptId key, boolean delete) {
+		cacheGeneration++;
 		try {
-			cache.urlScripts.clear();
 			bufferedScript.remove(key);
-			ScriptCriteria stored = registryMap.get(key);
+			resourceTexts.drop(key);
 			if (delete) {
-				if (stored != null) {
-					registryMap.remove(stored);
-					stored.release();
+				// not released, readers may still hold it
+				synchronized (registryLock) {
+					registry = registry.without(key);
 				}
 			} else {
-				ScriptCriteria tmp = dbHelper.getScriptCriteria(key);
-				if (stored == null) {
-					registerScript(tmp);
-				} else { // 更新
-					stored.setMatch(tmp.getMatch());
-					stored.version = tmp.version;
-					stored.connect = tmp.connect;
-					stored.rights = tmp.rights;
-					stored.setEnabled(tmp.isEnabled());
-					tmp = stored;
+				// replaces a registered version, keeping its runtime fields
+				ScriptCriteria criteria = dbHelper.getScriptCriteria(key);
+				if (criteria != null) {
+					registerScripts(new ScriptCriteria[] { criteria });
 				}
 			}
 		} catch (Exception e) {
 			CMN.debug(e);
+		} finally {
+			// after publishing the registry, so that matches against the
+			// previous one are neither kept nor put later
+			synchronized (cache) {
+				cacheGeneration++;
+				cache.urlScripts.clear();
+			}
 		}
 	}
 	
-	// inline
-	private void registerScript(ScriptCriteria key) {
-		registryMap.put(key, key);
-		key.runtimeId = registry.size();
-		CMN.debug("registered::script::", key.secret, key);
-		registry.add(key);
+	/**
+	 * @return a counter increased whenever cached scripts are invalidated
+	 */
+	public int getCacheGeneration() {
+		return cacheGeneration;
+	}
+	
+	/**
+	 * Publishes the next version of the registry with the given scripts.
+	 */
+	void registerScripts(ScriptCriteria[] scripts) {
+		synchronized (registryLock) {
+			registry = registry.with(scripts);
+		}
+		CMN.debug("registered::scripts::", scripts.length);
+	}
+
+	/**
+	 * Publishes the next version of the registry with exactly the given
+	 * scripts, as read from the database or the snapshot.
+	 */
+	void registerAllScripts(ScriptCriteria[] scripts) {
+		synchronized (registryLock) {
+			registry = registry.rebuilt(scripts);
+		}
+		CMN.debug("registered::all::", scripts.length);
 	}
 	
+	/**
+	 * Authenticates a bridge call: resolves the runtime id to the slot of its
+	 * script and compares the secret in constant time. Rejections are only
+	 * counted, see {@link #getBridgeStats}, since pages may call with
+	 * anything.
+	 *
+	 * @return the script or null if the call is rejected
+	 */
 	public ScriptCriteria getRunningScript(String runtimeId, String secret) {
-		try {
-			int id = Integer.parseInt(runtimeId);
-			ScriptCriteria ret = registry.get(id);
-			if (ret.isEnabled() && ret.secret.equals(secret)) {
-				return ret;
+		int id = parseRuntimeId(runtimeId);
+		if (id < 0) {
+			bridgeStats.malformed.incrementAndGet();
+			return null;
+		}
+		ScriptCriteria ret = registry.get(id);
+		if (ret == null) {
+			bridgeStats.unknown.incrementAndGet();
+			return null;
+		}
+		if (!secretEquals(ret.secret, secret)) {
+			bridgeStats.badSecret.incrementAndGet();
+			return null;
+		}
+		if (!ret.isEnabled()) {
+			bridgeStats.disabled.incrementAndGet();
+			return null;
+		}
+		bridgeStats.accepted.incrementAndGet();
+		return ret;
+	}
+
+	/**
+	 * @return the runtime id or -1 if the string is not a non-negative int
+	 *         in decimal
+	 */
+	static int parseRuntimeId(String runtimeId) {
+		int length = runtimeId == null ? 0 : runtimeId.length();
+		if (length == 0 || length > 10) {
+			return -1;
+		}
+		long id = 0;
+		for (int i = 0; i < length; i++) {
+			char c = runtimeId.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
 			}
-		} catch (Exception e) {
-			CMN.debug(e);
+			id = id * 10 + (c - '0');
+		}
+		return id > Integer.MAX_VALUE ? -1 : (int) id;
+	}
+
+	/**
+	 * Compares every char regardless of where the first mismatch is, so that
+	 * the time taken does not tell how much of a guess was right. Only the
+	 * length, the same for every secret, may end it early.
+	 */
+	static boolean secretEquals(String expected, String actual) {
+		if (expected == null || actual == null || expected.length() != actual.length()) {
+			return false;
+		}
+		int diff = 0;
+		for (int i = 0; i < expected.length(); i++) {
+			diff |= expected.charAt(i) ^ actual.charAt(i);
 		}
-		return null;
+		return diff == 0;
+	}
+
+	/**
+	 * @return counts of accepted and rejected bridge calls by reason for
+	 *         diagnostics
+	 */
+	public String getBridgeStats() {
+		return bridgeStats.toString();
+	}
+	
+	/**
+	 * Looks up a registered script by the runtime id handed to JavaScript,
+	 * without checking its secret.
+	 *
+	 * @return the script or null if the id is unknown or stale
+	 */
+	public ScriptCriteria findRunningScript(String runtimeId) {
+		int id = parseRuntimeId(runtimeId);
+		return id < 0 ? null : registry.get(id);
+	}
+	
+	/**
+	 * Gets the execution telemetry of a script.
+	 *
+	 * @param id
+	 *            the ID of the script
+	 * @return the statistics or null if the script is not registered
+	 */
+	public ScriptStats getStats(ScriptId id) {
+		ScriptCriteria stored = registry.get(id);
+		return stored == null ? null : stored.stats;
 	}
 	
 	/**
 	 * Creates an empty ScriptCache object and initializes its cache of all
 	 * available and enabled user script matching criteria.
 	 */
-	private void initCache() {
+	private void initCache(ScriptDbHelper dbHelper) {
 		cache = new ScriptCache();
-		cache.setScriptCriteriaArr(dbHelper.selectScriptCriteria(null, null));
+		ScriptCriteria[] snapshot = registry.byId.isEmpty() ? dbHelper.readRegistrySnapshot() : null;
+		if (snapshot != null) {
+			registerAllScripts(snapshot);
+			cache.setScriptCriteriaArr(null);
+		} else {
+			cache.setScriptCriteriaArr(dbHelper.selectScriptCriteria(null, null));
+			snapshotSoon();
+		}
+	}
+
+	/**
+	 * Schedules a write of the registry snapshot on the writer thread,
+	 * coalescing the changes made until it runs.
+	 */
+	private void snapshotSoon() {
+		ScheduledExecutorService writer = this.writer;
+		if (writer == null || !snapshotPending.compareAndSet(false, true)) {
+			return;
+		}
+		writer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				snapshotPending.set(false);
+				ScriptDbHelper dbHelper = ScriptStoreSQLite.this.dbHelper;
+				if (dbHelper != null) {
+					dbHelper.writeRegistrySnapshot();
+				}
+			}
+		}, SNAPSHOT_DELAY, TimeUnit.MILLISECONDS);
 	}
 	
+	/**
+	 * @return the files of all @resource'd data of a script, an empty array
+	 *         if it has none or the store is not ready
+	 */
+	public File[] getResourceFiles(ScriptId id) {
+		ScriptDbHelper dbHelper = this.dbHelper;
+		if (dbHelper == null) {
+			return new File[0];
+		}
+		return dbHelper.selectResourceFiles(id);
+	}
+
 	public ScriptResource getResources(ScriptCriteria script, String resourceName) {
 		if (dbHelper == null) {
 			return null;
@@ -393,19 +1339,263 @@ public class ScriptStoreSQLite /*implements ScriptStore*/ {
 		return dbHelper.getResource(script, resourceName);
 	}
 	
-	public static int DB_VERSION = 12;
+	/**
+	 * Gets @resource'd data decoded as UTF-8 text for GM_getResourceText,
+	 * through a cache of decoded texts.
+	 *
+	 * @return the text or null if the script has no such resource
+	 */
+	public String getResourceText(ScriptCriteria script, String resourceName) {
+		String text = resourceTexts.get(script, resourceName);
+		if (text != null) {
+			return text;
+		}
+		int generation = cacheGeneration;
+		ScriptResource resource = getResources(script, resourceName);
+		if (resource == null) {
+			return null;
+		}
+		text = resource.getJavascriptString();
+		synchronized (resourceTexts) {
+			// not if the script changed while decoding
+			if (generation == cacheGeneration) {
+				resourceTexts.put(script, resourceName, text);
+			}
+		}
+		return text;
+	}
+
+	/**
+	 * Keeps a decoded text while GM_getResourceText reads it in chunks, even
+	 * if too large for the cache of decoded texts. Pins are counted, each
+	 * is released by one {@link #releaseResourceText}.
+	 */
+	public void pinResourceText(ScriptCriteria script, String resourceName, String text) {
+		resourceTexts.pin(script, resourceName, text);
+	}
+
+	/**
+	 * Releases a text pinned by {@link #pinResourceText}.
+	 */
+	public void releaseResourceText(ScriptCriteria script, String resourceName) {
+		resourceTexts.unpin(script, resourceName);
+	}
+
+	/**
+	 * @return a summary of the decoded resource text cache for diagnostics
+	 */
+	public String getResourceTextStats() {
+		return resourceTexts.getStats();
+	}
+
+	public static int DB_VERSION = 17;
+
+	/** Ms after opening before content stored plain starts to be deflated. */
+	private static final long DEFLATE_DELAY = 10000;
+
+	/** Ms between passes of the deflation, leaving the writer to other writes. */
+	private static final long DEFLATE_PAUSE = 500;
+
+	/** Ms a write of the registry snapshot waits for further changes. */
+	private static final long SNAPSHOT_DELAY = 1000;
 	
+	/**
+	 * A write submitted to the writer thread, timed from submission to start
+	 * and from start to end.
+	 */
+	private static class WriteTask<T> extends FutureTask<T> {
+
+		private final WriterStats stats;
+
+		private final long submitted = System.nanoTime();
+
+		private final boolean queued;
+
+		WriteTask(Callable<T> write, WriterStats stats, boolean queued) {
+			super(write);
+			this.stats = stats;
+			this.queued = queued;
+			if (queued) {
+				stats.enqueued();
+			}
+		}
+
+		@Override
+		public void run() {
+			long start = System.nanoTime();
+			try {
+				super.run();
+			} finally {
+				stats.ran(queued, start - submitted, System.nanoTime() - start);
+			}
+		}
+	}
+
+	/**
+	 * Outcomes of bridge call authentication, counted without locking on
+	 * the JavaBridge threads.
+	 */
+	private static class BridgeStats {
+
+		final AtomicLong accepted = new AtomicLong();
+
+		/** The runtime id is not a number. */
+		final AtomicLong malformed = new AtomicLong();
+
+		/** No script has the runtime id, or no longer does. */
+		final AtomicLong unknown = new AtomicLong();
+
+		final AtomicLong badSecret = new AtomicLong();
+
+		final AtomicLong disabled = new AtomicLong();
+
+		@Override
+		public String toString() {
+			return "accepted=" + accepted.get() + " malformed=" + malformed.get()
+					+ " unknown=" + unknown.get() + " badSecret=" + badSecret.get()
+					+ " disabled=" + disabled.get();
+		}
+	}
+
+	/**
+	 * Queue depth and latencies of the writer thread.
+	 */
+	private static class WriterStats {
+
+		private int queueDepth;
+
+		private int maxQueueDepth;
+
+		private long tasks;
+
+		private long waitNanos;
+
+		private long maxWaitNanos;
+
+		private long runNanos;
+
+		private long maxRunNanos;
+
+		synchronized void enqueued() {
+			queueDepth++;
+			if (queueDepth > maxQueueDepth) {
+				maxQueueDepth = queueDepth;
+			}
+		}
+
+		synchronized void ran(boolean queued, long wait, long run) {
+			if (queued) {
+				queueDepth--;
+			}
+			tasks++;
+			waitNanos += wait;
+			if (wait > maxWaitNanos) {
+				maxWaitNanos = wait;
+			}
+			runNanos += run;
+			if (run > maxRunNanos) {
+				maxRunNanos = run;
+			}
+		}
+
+		synchronized int getQueueDepth() {
+			return queueDepth;
+		}
+
+		@Override
+		public synchronized String toString() {
+			return "tasks=" + tasks + " queued=" + queueDepth + " maxQueued="
+					+ maxQueueDepth + " wait=" + waitNanos / 1000000 + "ms maxWait="
+					+ maxWaitNanos / 1000000 + "ms run=" + runNanos / 1000000
+					+ "ms maxRun=" + maxRunNanos / 1000000 + "ms";
+		}
+	}
+
+	/**
+	 * A statement of {@link ScriptDbHelper} compiled once and reused, along
+	 * with how often and how long it ran. Compiled statements carry their
+	 * bindings, so binding and executing must hold the lock of this object.
+	 */
+	private static class TimedStatement {
+
+		private final String name;
+
+		private final String sql;
+
+		private SQLiteStatement statement;
+
+		private int runs;
+
+		private long totalNanos;
+
+		private long maxNanos;
+
+		TimedStatement(String name, String sql) {
+			this.name = name;
+			this.sql = sql;
+		}
+
+		/**
+		 * @return the compiled statement, cleared of previous bindings
+		 */
+		SQLiteStatement compile(SQLiteDatabase db) {
+			if (statement == null) {
+				statement = db.compileStatement(sql);
+			} else {
+				statement.clearBindings();
+			}
+			return statement;
+		}
+
+		/**
+		 * Records one run that started at the given {@link System#nanoTime()}.
+		 */
+		synchronized void record(long start) {
+			long nanos = System.nanoTime() - start;
+			runs++;
+			totalNanos += nanos;
+			if (nanos > maxNanos) {
+				maxNanos = nanos;
+			}
+		}
+
+		void close() {
+			if (statement != null) {
+				statement.close();
+				statement = null;
+			}
+		}
+
+		@Override
+		public synchronized String toString() {
+			return name + ": runs=" + runs + " total=" + totalNanos / 1000000
+					+ "ms max=" + maxNanos / 1000 + "us";
+		}
+	}
+
 	/**
 	 * Private class to manage the database access.
 	 */
-	private static class ScriptDbHelper extends SQLiteOpenHelper {
+	static class ScriptDbHelper extends SQLiteOpenHelper {
 
+		// V17 counts changes of the criteria in a meta table, see GENERATION.
+		private static final int DB_SCHEMA_VERSION_17 = 17;
+		// V16 adds a codec to script and @require content, see CODEC_DEFLATE.
+		private static final int DB_SCHEMA_VERSION_16 = 16;
+		// V15 moves @resource data to content-addressed files.
+		private static final int DB_SCHEMA_VERSION_15 = 15;
+		// V14 stores @require content once per hash, shared across scripts.
+		private static final int DB_SCHEMA_VERSION_14 = 14;
+		// V13 keys every table by the integer id of the script.
+		private static final int DB_SCHEMA_VERSION_13 = 13;
 		// V2 added tables for @require and @resource metadata directive.
 		private static final int DB_SCHEMA_VERSION_4 = 4;
 		private static final int DB_SCHEMA_VERSION_3 = 3;
 		private static final int DB_SCHEMA_VERSION_2 = 2;
 
 		private static final String TBL_SCRIPT = "script";
+		private static final String COL_ID = "id";
+		private static final String COL_SCRIPT_ID = "script_id";
 		private static final String COL_NAME = "name";
 		private static final String COL_NAMESPACE = "namespace";
 		private static final String COL_DOWNLOADURL = "downloadurl";
@@ -422,9 +1612,25 @@ public class ScriptStoreSQLite /*implements ScriptStore*/ {
 		private static final String COL_TIME = "time";
 		private static final String COL_EXTERNALS = "exts";
 		private static final String COL_NAME_LOCAL = "name_loc";
+		/** How {@link #COL_CONTENT} is stored, one of the CODEC constants. */
+		private static final String COL_CODEC = "codec";
+		/** Content is plain TEXT. */
+		private static final int CODEC_NONE = 0;
+		/** Content is a BLOB of its UTF-8 bytes, deflated at the fastest level. */
+		private static final int CODEC_DEFLATE = 1;
+		/**
+		 * Deflated content is read through a blob file descriptor, which
+		 * older versions lack, so they keep everything plain.
+		 */
+		private static final boolean DEFLATE = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+		/** Content shorter than this many chars is not worth deflating. */
+		private static final int MIN_DEFLATE = 1024;
+		/** Rows deflated per pass of the background migration. */
+		static final int DEFLATE_BATCH = 16;
+		private static final Charset UTF_8 = Charset.forName("UTF-8");
 		private static final String TBL_SCRIPT_CREATE = "CREATE TABLE "
-				+ TBL_SCRIPT + " (" + COL_NAME + " TEXT NOT NULL" + ", "
-				+ COL_NAMESPACE + " TEXT NOT NULL" + ", " + COL_DESCRIPTION
+				+ TBL_SCRIPT + " (" + COL_ID + " INTEGER PRIMARY KEY" + ", "
+				+ COL_NAME + " TEXT NOT NULL" + ", " + COL_NAMESPACE + " TEXT NOT NULL" + ", " + COL_DESCRIPTION
 				+ " TEXT" + ", " + COL_DOWNLOADURL + " TEXT" + ", "
 				+ COL_UPDATEURL + " TEXT" + ", " + COL_INSTALLURL + " TEXT"
 				+ ", " + COL_ICON + " TEXT" + ", " + COL_RUNAT + " TEXT" + ", "
@@ -435,7 +1641,18 @@ public class ScriptStoreSQLite /*implements ScriptStore*/ {
 				+ COL_TIME + " INTEGER NOT NULL DEFAULT 0" + ", "
 				+ COL_EXTERNALS + " INTEGER NOT NULL DEFAULT 0" + ", "
 				+ COL_NAME_LOCAL + " TEXT" + ", "
-				+ "PRIMARY KEY (" + COL_NAME + ", " + COL_NAMESPACE + "));";
+				+ COL_CODEC + " INTEGER NOT NULL DEFAULT 0" + ", "
+				+ "UNIQUE (" + COL_NAME + ", " + COL_NAMESPACE + "));";
+
+		/** References the script of a child row, cascading deletes. */
+		private static final String COL_SCRIPT_ID_REF = COL_SCRIPT_ID
+				+ " INTEGER NOT NULL REFERENCES " + TBL_SCRIPT + " (" + COL_ID
+				+ ") ON DELETE CASCADE";
+
+		/** Selects the child rows of a script given by name and namespace. */
+		private static final String SCRIPT_ID_SELECTION = COL_SCRIPT_ID
+				+ " = (SELECT " + COL_ID + " FROM " + TBL_SCRIPT + " WHERE "
+				+ COL_NAME + " = ? AND " + COL_NAMESPACE + " = ?)";
 
 //		private static final String COL_PATTERN = "pattern";
 		
@@ -445,110 +1662,119 @@ public class ScriptStoreSQLite /*implements ScriptStore*/ {
 		private static final String COL_CONNECT = "connect";
 		private static final String COL_USER_CONNECT = "usr_connect";
 		private static final String TBL_MATCH_CREATE = "CREATE TABLE "
-				+ TBL_MATCH + " (" + COL_NAME + " TEXT NOT NULL" + ", "
-				+ COL_NAMESPACE + " TEXT NOT NULL"
+				+ TBL_MATCH + " (" + COL_SCRIPT_ID_REF + " PRIMARY KEY"
 				+ ", " + COL_PATTERNS + " TEXT NOT NULL" + ", "
 				+ COL_ENABLED + " INTEGER NOT NULL DEFAULT 1" + ", "
 				+ COL_RIGHTS + " INTEGER NOT NULL DEFAULT 0" + ", "
 				+ COL_VERSION + " TEXT" + ", "
 				+ COL_CONNECT + " TEXT" + ", "
-				+ COL_USER_CONNECT + " TEXT" + ", "
-				+ "PRIMARY KEY (" + COL_NAME + ", "
-				+ COL_NAMESPACE + "), FOREIGN KEY ("
-				+ COL_NAME + ", " + COL_NAMESPACE + ") REFERENCES "
-				+ TBL_SCRIPT + " (" + COL_NAME + ", " + COL_NAMESPACE
-				+ ") ON UPDATE CASCADE ON DELETE CASCADE);";
+				+ COL_USER_CONNECT + " TEXT);";
+
+		/** Criteria of all scripts, joined with the name of their script. */
+		private static final String SQL_CRITERIA = "SELECT s." + COL_NAME + ", s."
+				+ COL_NAMESPACE + ", m." + COL_PATTERNS + ", m." + COL_ENABLED
+				+ ", m." + COL_RIGHTS + ", m." + COL_VERSION + ", m." + COL_CONNECT
+				+ ", s." + COL_ID + " FROM " + TBL_MATCH + " m JOIN " + TBL_SCRIPT
+				+ " s ON s." + COL_ID + " = m." + COL_SCRIPT_ID;
 
+		/** Content of @require'd scripts, stored once per SHA-256 hash. */
+		private static final String TBL_REQUIRE_BLOB = "require_blob";
+		private static final String COL_HASH = "hash";
+		private static final String TBL_REQUIRE_BLOB_CREATE = "CREATE TABLE IF NOT EXISTS "
+				+ TBL_REQUIRE_BLOB + " (" + COL_HASH + " TEXT PRIMARY KEY, "
+				+ COL_CONTENT + " TEXT NOT NULL, "
+				+ COL_CODEC + " INTEGER NOT NULL DEFAULT 0);";
+
+		/** Links scripts to the content of their @require URLs. */
 		private static final String TBL_REQUIRE = TBL_SCRIPT + "_has_require";
 		private static final String TBL_REQUIRE_CREATE = "CREATE TABLE IF NOT EXISTS "
-				+ TBL_REQUIRE
-				+ " ("
-				+ COL_NAME
-				+ " TEXT NOT NULL"
-				+ ", "
-				+ COL_NAMESPACE
-				+ " TEXT NOT NULL, "
-				+ COL_DOWNLOADURL
-				+ " TEXT NOT NULL, "
-				+ COL_CONTENT
-				+ " TEXT NOT NULL, PRIMARY KEY ("
-				+ COL_NAME
-				+ ", "
-				+ COL_NAMESPACE
-				+ ", "
-				+ COL_DOWNLOADURL
-				+ "), FOREIGN KEY ("
-				+ COL_NAME
-				+ ", "
-				+ COL_NAMESPACE
-				+ ") REFERENCES "
-				+ TBL_SCRIPT
-				+ " ("
-				+ COL_NAME
-				+ ", "
-				+ COL_NAMESPACE
-				+ ") ON UPDATE CASCADE ON DELETE CASCADE);";
+				+ TBL_REQUIRE + " (" + COL_SCRIPT_ID_REF + ", "
+				+ COL_DOWNLOADURL + " TEXT NOT NULL, "
+				+ COL_HASH + " TEXT NOT NULL REFERENCES " + TBL_REQUIRE_BLOB + " ("
+				+ COL_HASH + "), PRIMARY KEY (" + COL_SCRIPT_ID + ", "
+				+ COL_DOWNLOADURL + "));";
+		// for installs looking up URLs of other scripts and the garbage collection of blobs
+		private static final String[] IDX_REQUIRE_CREATE = new String[] {
+				"CREATE INDEX IF NOT EXISTS " + TBL_REQUIRE + "_url ON " + TBL_REQUIRE
+						+ " (" + COL_DOWNLOADURL + ");",
+				"CREATE INDEX IF NOT EXISTS " + TBL_REQUIRE + "_hash ON " + TBL_REQUIRE
+						+ " (" + COL_HASH + ");" };
 
+		/**
+		 * Metadata of @resource'd data, which is stored in a file named after
+		 * its hash in {@link #getResourceDir}.
+		 */
 		private static final String TBL_RESOURCE = TBL_SCRIPT + "_has_resource";
 		private static final String COL_DATA = "data";
+		private static final String COL_SIZE = "size";
 		private static final String COL_RESOURCENAME = "resource_name";
 		private static final String TBL_RESOURCE_CREATE = "CREATE TABLE IF NOT EXISTS "
-				+ TBL_RESOURCE
-				+ " ("
-				+ COL_NAME
-				+ " TEXT NOT NULL, "
-				+ COL_NAMESPACE
-				+ " TEXT NOT NULL, "
-				+ COL_RESOURCENAME
-				+ " TEXT NOT NULL, "
-				+ COL_DOWNLOADURL
-				+ " TEXT NOT NULL, "
-				+ COL_DATA
-				+ " BLOB NOT NULL, PRIMARY KEY ("
-				+ COL_NAME
-				+ ", "
-				+ COL_NAMESPACE
-				+ ", "
-				+ COL_RESOURCENAME
-				+ "), FOREIGN KEY ("
-				+ COL_NAME
-				+ ", "
-				+ COL_NAMESPACE
-				+ ") REFERENCES "
-				+ TBL_SCRIPT
-				+ " ("
-				+ COL_NAME
-				+ ", "
-				+ COL_NAMESPACE
-				+ ") ON UPDATE CASCADE ON DELETE CASCADE);";
+				+ TBL_RESOURCE + " (" + COL_SCRIPT_ID_REF + ", "
+				+ COL_RESOURCENAME + " TEXT NOT NULL, "
+				+ COL_DOWNLOADURL + " TEXT NOT NULL, "
+				+ COL_HASH + " TEXT NOT NULL, "
+				+ COL_SIZE + " INTEGER NOT NULL, PRIMARY KEY ("
+				+ COL_SCRIPT_ID + ", " + COL_RESOURCENAME + "));";
 
 		private static final String TBL_VALUE = TBL_SCRIPT + "_has_value";
 		private static final String COL_VALUENAME = "valuename";
 		private static final String COL_VALUE = "value";
+		// the primary key covers value lookups where the table can be clustered on it
 		private static final String TBL_VALUE_CREATE = "CREATE TABLE "
-				+ TBL_VALUE + " (" + COL_NAME + " TEXT NOT NULL" + ", " + COL_NAMESPACE + " TEXT NOT NULL"
+				+ TBL_VALUE + " (" + COL_SCRIPT_ID_REF
 				+ ", " + COL_VALUENAME + " TEXT NOT NULL"
-				+ ", " + COL_VALUE + " TEXT NOT NULL, PRIMARY KEY (" + COL_NAME + ", "
-				+ COL_NAMESPACE + ", " + COL_VALUENAME + "), FOREIGN KEY ("
-				+ COL_NAME + ", " + COL_NAMESPACE + ") REFERENCES "
-				+ TBL_SCRIPT + " (" + COL_NAME + ", " + COL_NAMESPACE
-				+ ") ON UPDATE CASCADE ON DELETE CASCADE);";
+				+ ", " + COL_VALUE + " TEXT NOT NULL, PRIMARY KEY (" + COL_SCRIPT_ID
+				+ ", " + COL_VALUENAME + "))"
+				+ (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ? " WITHOUT ROWID;" : ";");
+
+		/**
+		 * Counters kept by the database itself. {@link #GENERATION} is raised
+		 * by triggers on every change of the criteria, so that a snapshot of
+		 * them can tell if it is stale.
+		 */
+		private static final String TBL_META = "meta";
+		private static final String COL_KEY = "key";
+		private static final String GENERATION = "generation";
+		private static final String[] META_CREATE;
+		static {
+			String bump = " BEGIN UPDATE " + TBL_META + " SET " + COL_VALUE + " = "
+					+ COL_VALUE + " + 1 WHERE " + COL_KEY + " = '" + GENERATION + "'; END;";
+			META_CREATE = new String[] {
+					"CREATE TABLE IF NOT EXISTS " + TBL_META + " (" + COL_KEY
+							+ " TEXT PRIMARY KEY, " + COL_VALUE + " INTEGER NOT NULL);",
+					"INSERT OR IGNORE INTO " + TBL_META + " (" + COL_KEY + ", " + COL_VALUE
+							+ ") VALUES ('" + GENERATION + "', 0);",
+					"CREATE TRIGGER IF NOT EXISTS " + TBL_MATCH + "_insert AFTER INSERT ON "
+							+ TBL_MATCH + bump,
+					"CREATE TRIGGER IF NOT EXISTS " + TBL_MATCH + "_update AFTER UPDATE ON "
+							+ TBL_MATCH + bump,
+					"CREATE TRIGGER IF NOT EXISTS " + TBL_MATCH + "_delete AFTER DELETE ON "
+							+ TBL_MATCH + bump,
+					// content updates, like the background deflation, leave it alone
+					"CREATE TRIGGER IF NOT EXISTS " + TBL_SCRIPT + "_rename AFTER UPDATE OF "
+							+ COL_NAME + ", " + COL_NAMESPACE + " ON " + TBL_SCRIPT + bump,
+					"CREATE TRIGGER IF NOT EXISTS " + TBL_SCRIPT + "_delete AFTER DELETE ON "
+							+ TBL_SCRIPT + bump };
+		}
 
 		private static final String[] COLS_ID = new String[] { COL_NAME,
 				COL_NAMESPACE };
-		private static final String[] COLS_PATTERN = new String[] { COL_NAME,
-				COL_NAMESPACE, COL_PATTERNS };
-		private static final String[] COLS_PATTERN_ENABLED = new String[] { COL_NAME,
-				COL_NAMESPACE, COL_PATTERNS, COL_ENABLED, COL_RIGHTS, COL_VERSION, COL_CONNECT };
-		private static final String[] COLS_REQUIRE = new String[] { COL_NAME,
-				COL_NAMESPACE, COL_DOWNLOADURL, COL_CONTENT };
-		private static final String[] COLS_RESOURCE = new String[] { COL_NAME,
-				COL_NAMESPACE, COL_DOWNLOADURL, COL_RESOURCENAME, COL_DATA };
-		private static final String[] COLS_RESOURCE_DATA = new String[] { COL_DATA };
+		private static final String[] COLS_RESOURCE_FILE = new String[] {
+				COL_DOWNLOADURL, COL_HASH };
+		/**
+		 * TEXT longer than this many chars is not read through a cursor but in
+		 * segments of this size, far below the CursorWindow limit.
+		 */
+		private static final int SEGMENT = 256 * 1024;
+
+		// large or deflated content comes back as null and is read by id
 		private static final String[] COLS_SCRIPT = new String[] { COL_NAME
 				, COL_NAMESPACE, COL_DESCRIPTION, COL_DOWNLOADURL, COL_UPDATEURL
 				, COL_INSTALLURL, COL_ICON/*, COL_RUNAT*//*, COL_UNWRAP*/, COL_VERSION
-				, COL_ENABLED, COL_RIGHTS, COL_CONTENT, COL_NAME_LOCAL };
+				, COL_ENABLED, COL_RIGHTS
+				, "CASE WHEN " + COL_CODEC + " = " + CODEC_NONE + " AND length(" + COL_CONTENT + ") <= "
+						+ SEGMENT + " THEN " + COL_CONTENT + " END"
+				, COL_NAME_LOCAL, "length(" + COL_CONTENT + ")", COL_ID };
 		private static final String[] COLS_SCRIPT_META = new String[] { COL_NAME
 				, COL_NAMESPACE, COL_DESCRIPTION, COL_DOWNLOADURL, COL_UPDATEURL
 				, COL_INSTALLURL, COL_ICON/*, COL_RUNAT*//*, COL_UNWRAP*/, COL_VERSION
@@ -557,6 +1783,84 @@ public class ScriptStoreSQLite /*implements ScriptStore*/ {
 		private SQLiteDatabase db;
 		private final ScriptStoreSQLite scriptStore;
 
+		private final TimedStatement scriptIdQuery = new TimedStatement("scriptId",
+				"SELECT " + COL_ID + " FROM " + TBL_SCRIPT + " WHERE " + COL_NAME
+						+ " = ? AND " + COL_NAMESPACE + " = ?");
+		private final TimedStatement valueQuery = new TimedStatement("getValue",
+				"SELECT " + COL_VALUE + " FROM " + TBL_VALUE + " WHERE "
+						+ COL_SCRIPT_ID + " = ? AND " + COL_VALUENAME + " = ?");
+		private final TimedStatement valueUpsert = new TimedStatement("setValue",
+				"INSERT OR REPLACE INTO " + TBL_VALUE + " (" + COL_SCRIPT_ID + ", "
+						+ COL_VALUENAME + ", " + COL_VALUE + ") VALUES (?, ?, ?)");
+		private final TimedStatement valueDelete = new TimedStatement("deleteValue",
+				"DELETE FROM " + TBL_VALUE + " WHERE " + COL_SCRIPT_ID + " = ? AND "
+						+ COL_VALUENAME + " = ?");
+		private final TimedStatement requireQuery = new TimedStatement("hasRequire",
+				"SELECT 1 FROM " + TBL_REQUIRE + " WHERE " + COL_SCRIPT_ID + " = ? AND "
+						+ COL_DOWNLOADURL + " = ? LIMIT 1");
+		private final TimedStatement resourceQuery = new TimedStatement("hasResource",
+				"SELECT 1 FROM " + TBL_RESOURCE + " WHERE " + COL_SCRIPT_ID + " = ? AND "
+						+ COL_RESOURCENAME + " = ? LIMIT 1");
+		/** Not compiled since it yields rows, only timed. */
+		private final TimedStatement criteriaQuery = new TimedStatement("criteria", SQL_CRITERIA);
+		/** Not compiled since it yields rows, only timed. */
+		private final TimedStatement valuesQuery = new TimedStatement("getValues", null);
+
+		private final TimedStatement generationQuery = new TimedStatement("generation",
+				"SELECT " + COL_VALUE + " FROM " + TBL_META + " WHERE " + COL_KEY + " = '"
+						+ GENERATION + "'");
+
+		private final TimedStatement knownRequireQuery = new TimedStatement("knownRequire",
+				"SELECT 1 FROM " + TBL_REQUIRE + " WHERE " + COL_DOWNLOADURL + " = ? LIMIT 1");
+		private final TimedStatement requireBlobQuery = new TimedStatement("requireBlob",
+				"SELECT " + COL_CONTENT + " FROM " + TBL_REQUIRE_BLOB + " WHERE "
+						+ COL_HASH + " = ? AND " + COL_CODEC + " = " + CODEC_NONE);
+		private final TimedStatement requireBlobInsert = new TimedStatement("insertRequireBlob",
+				"INSERT OR IGNORE INTO " + TBL_REQUIRE_BLOB + " (" + COL_HASH + ", "
+						+ COL_CONTENT + ", " + COL_CODEC + ") VALUES (?, ?, ?)");
+		private final TimedStatement requireLink = new TimedStatement("linkRequire",
+				"INSERT OR REPLACE INTO " + TBL_REQUIRE + " (" + COL_SCRIPT_ID + ", "
+						+ COL_DOWNLOADURL + ", " + COL_HASH + ") VALUES (?, ?, ?)");
+		private final TimedStatement requireLinkKnown = new TimedStatement("linkKnownRequire",
+				"INSERT OR REPLACE INTO " + TBL_REQUIRE + " (" + COL_SCRIPT_ID + ", "
+						+ COL_DOWNLOADURL + ", " + COL_HASH + ") SELECT ?, "
+						+ COL_DOWNLOADURL + ", " + COL_HASH + " FROM " + TBL_REQUIRE
+						+ " WHERE " + COL_DOWNLOADURL + " = ? LIMIT 1");
+		private final TimedStatement requireBlobGc = new TimedStatement("gcRequireBlobs",
+				"DELETE FROM " + TBL_REQUIRE_BLOB + " WHERE NOT EXISTS (SELECT 1 FROM "
+						+ TBL_REQUIRE + " r WHERE r." + COL_HASH + " = " + TBL_REQUIRE_BLOB
+						+ "." + COL_HASH + ")");
+
+		private final TimedStatement scriptSegmentQuery = new TimedStatement("scriptSegment",
+				"SELECT substr(" + COL_CONTENT + ", ?, ?) FROM " + TBL_SCRIPT + " WHERE "
+						+ COL_ID + " = ? AND " + COL_CODEC + " = " + CODEC_NONE);
+		private final TimedStatement requireSegmentQuery = new TimedStatement("requireSegment",
+				"SELECT substr(" + COL_CONTENT + ", ?, ?) FROM " + TBL_REQUIRE_BLOB + " WHERE "
+						+ COL_HASH + " = ? AND " + COL_CODEC + " = " + CODEC_NONE);
+		private final TimedStatement scriptDeflatedQuery = new TimedStatement("scriptDeflated",
+				"SELECT " + COL_CONTENT + " FROM " + TBL_SCRIPT + " WHERE " + COL_ID
+						+ " = ? AND " + COL_CODEC + " = " + CODEC_DEFLATE);
+		private final TimedStatement requireDeflatedQuery = new TimedStatement("requireDeflated",
+				"SELECT " + COL_CONTENT + " FROM " + TBL_REQUIRE_BLOB + " WHERE " + COL_HASH
+						+ " = ? AND " + COL_CODEC + " = " + CODEC_DEFLATE);
+
+		private final TimedStatement[] statements = { scriptIdQuery, valueQuery,
+				valueUpsert, valueDelete, requireQuery, resourceQuery, criteriaQuery,
+				valuesQuery, knownRequireQuery, requireBlobQuery, requireBlobInsert,
+				requireLink, requireLinkKnown, requireBlobGc, scriptSegmentQuery,
+				requireSegmentQuery, scriptDeflatedQuery, requireDeflatedQuery,
+				generationQuery };
+
+		/**
+		 * @require content by hash, so that scripts sharing a library share
+		 * one string as long as any of them is loaded.
+		 */
+		private final HashMap<String, WeakReference<String>> requireTexts = new HashMap<String, WeakReference<String>>();
+
+		private File resourceDir;
+
+		private File snapshotFile;
+
 //		public ScriptDbHelper(ScriptStoreSQLite scriptStore) {
 //			super(scriptStore.context, DB, null, DB_VERSION);
 //			this.scriptStore = scriptStore;
@@ -567,17 +1871,65 @@ public class ScriptStoreSQLite /*implements ScriptStore*/ {
 		public ScriptDbHelper(ScriptStoreSQLite scriptStore, String pathName) {
 			super(scriptStore.context, pathName, null, DB_VERSION);
 			this.scriptStore = scriptStore;
+			// write-ahead logging lets reads on other threads run on their own
+			// connections while a write transaction is open
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+				setWriteAheadLoggingEnabled(true);
+			}
 			db = getWritableDatabase();
-			db.execSQL("PRAGMA foreign_keys = ON;");
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+				// applies to every pooled connection, unlike the pragma
+				db.setForeignKeyConstraintsEnabled(true);
+			} else {
+				if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+					db.enableWriteAheadLogging();
+				}
+				db.execSQL("PRAGMA foreign_keys = ON;");
+			}
+			resourceDir = getResourceDir(db);
+			snapshotFile = new File(db.getPath() + "-registry");
 		}
 
-		// @Override
-		public void onCreate(SQLiteDatabase db) {
-			db.execSQL(TBL_SCRIPT_CREATE);
-			db.execSQL(TBL_MATCH_CREATE);
+		@Override
+		public synchronized void close() {
+			for (TimedStatement statement : statements) {
+				synchronized (statement) {
+					statement.close();
+				}
+			}
+			super.close();
+		}
+
+		/**
+		 * @return how often and how long each of the hot statements ran
+		 */
+		String getStats() {
+			StringBuilder sb = new StringBuilder();
+			for (TimedStatement statement : statements) {
+				if (sb.length() > 0) {
+					sb.append("\n");
+				}
+				sb.append(statement);
+			}
+			return sb.toString();
+		}
+
+		// @Override
+		public void onCreate(SQLiteDatabase db) {
+			db.execSQL(TBL_SCRIPT_CREATE);
+			db.execSQL(TBL_MATCH_CREATE);
 			db.execSQL(TBL_VALUE_CREATE);
+			db.execSQL(TBL_REQUIRE_BLOB_CREATE);
 			db.execSQL(TBL_REQUIRE_CREATE);
+			for (String index : IDX_REQUIRE_CREATE) {
+				db.execSQL(index);
+			}
 			db.execSQL(TBL_RESOURCE_CREATE);
+			for (String sql : META_CREATE) {
+				db.execSQL(sql);
+			}
+			// a snapshot left from before would start over at the same generation
+			new File(db.getPath() + "-registry").delete();
 		}
 
 		// @Override
@@ -612,9 +1964,351 @@ public class ScriptStoreSQLite /*implements ScriptStore*/ {
 //				{
 //					if(!columnExists(db, TBL_SCRIPT, COL_NAME_LOCAL)) db.execSQL("ALTER TABLE "+TBL_SCRIPT+" ADD COLUMN "+COL_NAME_LOCAL+" TEXT");
 //				}
+				if (v == DB_SCHEMA_VERSION_13 && !columnExists(db, TBL_VALUE, COL_SCRIPT_ID)) {
+					migrateToScriptIds(db);
+				}
+				if (v == DB_SCHEMA_VERSION_14 && !columnExists(db, TBL_REQUIRE, COL_HASH)) {
+					migrateRequireBlobs(db);
+				}
+				if (v == DB_SCHEMA_VERSION_15 && !columnExists(db, TBL_RESOURCE, COL_HASH)) {
+					migrateResourceFiles(db);
+				}
+				// existing rows stay plain and are deflated in the background
+				if (v == DB_SCHEMA_VERSION_16) {
+					if (!columnExists(db, TBL_SCRIPT, COL_CODEC)) {
+						db.execSQL("ALTER TABLE " + TBL_SCRIPT + " ADD COLUMN " + COL_CODEC + " INTEGER NOT NULL DEFAULT 0");
+					}
+					if (!columnExists(db, TBL_REQUIRE_BLOB, COL_CODEC)) {
+						db.execSQL("ALTER TABLE " + TBL_REQUIRE_BLOB + " ADD COLUMN " + COL_CODEC + " INTEGER NOT NULL DEFAULT 0");
+					}
+				}
+				if (v == DB_SCHEMA_VERSION_17) {
+					for (String sql : META_CREATE) {
+						db.execSQL(sql);
+					}
+				}
+			}
+		}
+
+		/**
+		 * The tables of version 13, frozen here so that the steps after it
+		 * upgrade them like those of any other database of that version.
+		 * Never change these along with the constants above.
+		 */
+		private static final String[] V13_CREATE = new String[] {
+				"CREATE TABLE script (id INTEGER PRIMARY KEY, name TEXT NOT NULL, "
+						+ "namespace TEXT NOT NULL, description TEXT, downloadurl TEXT, "
+						+ "updateurl TEXT, installurl TEXT, icon TEXT, runat TEXT, "
+						+ "unwrap INTEGER, version TEXT, content TEXT NOT NULL, "
+						+ "enabled INTEGER NOT NULL DEFAULT 1, rights INTEGER NOT NULL DEFAULT 0, "
+						+ "time INTEGER NOT NULL DEFAULT 0, exts INTEGER NOT NULL DEFAULT 0, "
+						+ "name_loc TEXT, UNIQUE (name, namespace));",
+				"CREATE TABLE script_has_match (script_id INTEGER NOT NULL REFERENCES "
+						+ "script (id) ON DELETE CASCADE PRIMARY KEY, patterns TEXT NOT NULL, "
+						+ "enabled INTEGER NOT NULL DEFAULT 1, rights INTEGER NOT NULL DEFAULT 0, "
+						+ "version TEXT, connect TEXT, usr_connect TEXT);",
+				"CREATE TABLE script_has_value (script_id INTEGER NOT NULL REFERENCES "
+						+ "script (id) ON DELETE CASCADE, valuename TEXT NOT NULL, "
+						+ "value TEXT NOT NULL, PRIMARY KEY (script_id, valuename))"
+						+ (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ? " WITHOUT ROWID;" : ";"),
+				"CREATE TABLE script_has_require (script_id INTEGER NOT NULL REFERENCES "
+						+ "script (id) ON DELETE CASCADE, downloadurl TEXT NOT NULL, "
+						+ "content TEXT NOT NULL, PRIMARY KEY (script_id, downloadurl));",
+				"CREATE TABLE script_has_resource (script_id INTEGER NOT NULL REFERENCES "
+						+ "script (id) ON DELETE CASCADE, resource_name TEXT NOT NULL, "
+						+ "downloadurl TEXT NOT NULL, data BLOB NOT NULL, "
+						+ "PRIMARY KEY (script_id, resource_name));" };
+
+		/**
+		 * Moves all tables from (name, namespace) TEXT keys to the integer id
+		 * of their script, creating them as of version 13. Scripts keep the
+		 * rowid they had as their id.
+		 */
+		private void migrateToScriptIds(SQLiteDatabase db) {
+			String[] tables = new String[] { "script", "script_has_match",
+					"script_has_require", "script_has_resource", "script_has_value" };
+			for (String table : tables) {
+				db.execSQL("ALTER TABLE " + table + " RENAME TO " + table + "_old");
+			}
+			for (String sql : V13_CREATE) {
+				db.execSQL(sql);
+			}
+			String cols = "name, namespace, description, downloadurl, updateurl, installurl, "
+					+ "icon, runat, unwrap, version, content, enabled, rights, time, exts, name_loc";
+			db.execSQL("INSERT INTO script (id, " + cols + ") SELECT rowid, " + cols
+					+ " FROM script_old");
+			copyByScriptId(db, "script_has_match", new String[] { "patterns", "enabled",
+					"rights", "version", "connect", "usr_connect" });
+			copyByScriptId(db, "script_has_require", new String[] { "downloadurl", "content" });
+			copyByScriptId(db, "script_has_resource", new String[] { "resource_name",
+					"downloadurl", "data" });
+			copyByScriptId(db, "script_has_value", new String[] { "valuename", "value" });
+			for (int i = tables.length - 1; i >= 0; i--) {
+				db.execSQL("DROP TABLE " + tables[i] + "_old");
+			}
+		}
+
+		private static void copyByScriptId(SQLiteDatabase db, String table, String[] cols) {
+			StringBuilder sql = new StringBuilder("INSERT INTO ").append(table)
+					.append(" (").append(COL_SCRIPT_ID);
+			for (String col : cols) {
+				sql.append(", ").append(col);
+			}
+			sql.append(") SELECT s.").append(COL_ID);
+			for (String col : cols) {
+				sql.append(", o.").append(col);
+			}
+			sql.append(" FROM ").append(table).append("_old o JOIN ").append(TBL_SCRIPT)
+					.append(" s ON s.").append(COL_NAME).append(" = o.").append(COL_NAME)
+					.append(" AND s.").append(COL_NAMESPACE).append(" = o.").append(COL_NAMESPACE);
+			db.execSQL(sql.toString());
+		}
+
+		/**
+		 * Moves the content of @require rows keyed by script into the shared
+		 * blob table.
+		 */
+		private void migrateRequireBlobs(SQLiteDatabase db) {
+			db.execSQL("ALTER TABLE " + TBL_REQUIRE + " RENAME TO " + TBL_REQUIRE + "_old");
+			db.execSQL(TBL_REQUIRE_BLOB_CREATE);
+			db.execSQL(TBL_REQUIRE_CREATE);
+			for (String index : IDX_REQUIRE_CREATE) {
+				db.execSQL(index);
+			}
+			copyRequires(db, "SELECT " + COL_SCRIPT_ID + ", " + COL_DOWNLOADURL + ", "
+					+ COL_CONTENT + " FROM " + TBL_REQUIRE + "_old");
+			db.execSQL("DROP TABLE " + TBL_REQUIRE + "_old");
+		}
+
+		/**
+		 * Inserts the (script id, URL, content) rows selected by sql as blobs
+		 * and links.
+		 */
+		private static void copyRequires(SQLiteDatabase db, String sql) {
+			Cursor cursor = db.rawQuery(sql, null);
+			try {
+				while (cursor.moveToNext()) {
+					String content = cursor.getString(2);
+					String hash = hash(content);
+					db.execSQL("INSERT OR IGNORE INTO " + TBL_REQUIRE_BLOB + " (" + COL_HASH
+							+ ", " + COL_CONTENT + ") VALUES (?, ?)", new Object[] { hash, content });
+					db.execSQL("INSERT OR REPLACE INTO " + TBL_REQUIRE + " (" + COL_SCRIPT_ID
+							+ ", " + COL_DOWNLOADURL + ", " + COL_HASH + ") VALUES (?, ?, ?)",
+							new Object[] { cursor.getLong(0), cursor.getString(1), hash });
+				}
+			} finally {
+				cursor.close();
+			}
+		}
+
+		/**
+		 * Moves @resource data out of the database into files.
+		 */
+		private void migrateResourceFiles(SQLiteDatabase db) {
+			db.execSQL("ALTER TABLE " + TBL_RESOURCE + " RENAME TO " + TBL_RESOURCE + "_old");
+			db.execSQL(TBL_RESOURCE_CREATE);
+			copyResources(db, "SELECT " + COL_SCRIPT_ID + ", " + COL_RESOURCENAME + ", "
+					+ COL_DOWNLOADURL + ", " + COL_DATA + " FROM " + TBL_RESOURCE + "_old");
+			db.execSQL("DROP TABLE " + TBL_RESOURCE + "_old");
+		}
+
+		/**
+		 * Writes the data of the (script id, name, URL, data) rows selected by
+		 * sql to files and inserts their metadata.
+		 *
+		 * @throws SQLiteException
+		 *             if a file cannot be written, rolling back the upgrade
+		 *             before the old table is dropped
+		 */
+		private static void copyResources(SQLiteDatabase db, String sql) {
+			File dir = getResourceDir(db);
+			Cursor cursor = db.rawQuery(sql, null);
+			try {
+				while (cursor.moveToNext()) {
+					byte[] data = cursor.getBlob(3);
+					String hash;
+					try {
+						hash = writeResourceFile(dir, data);
+					} catch (IOException e) {
+						throw new SQLiteException("Error moving resource " + cursor.getString(1)
+								+ " to " + dir, e);
+					}
+					db.execSQL("INSERT OR REPLACE INTO " + TBL_RESOURCE + " (" + COL_SCRIPT_ID
+							+ ", " + COL_RESOURCENAME + ", " + COL_DOWNLOADURL + ", " + COL_HASH
+							+ ", " + COL_SIZE + ") VALUES (?, ?, ?, ?, ?)", new Object[] {
+							cursor.getLong(0), cursor.getString(1), cursor.getString(2), hash,
+							data.length });
+				}
+			} finally {
+				cursor.close();
+			}
+		}
+
+		/**
+		 * @return the directory of the resource files next to the database
+		 */
+		private static File getResourceDir(SQLiteDatabase db) {
+			return new File(db.getPath() + "-resources");
+		}
+
+		/**
+		 * Stores data in a file named after its hash unless it exists already.
+		 *
+		 * @return the hash
+		 */
+		private static String writeResourceFile(File dir, byte[] data) throws IOException {
+			String hash = hash(data);
+			File file = new File(dir, hash);
+			if (file.length() == data.length) {
+				return hash;
+			}
+			if (!dir.isDirectory() && !dir.mkdirs()) {
+				throw new IOException("Cannot create " + dir);
+			}
+			// written aside and renamed so that readers never see part of it
+			File tmp = new File(dir, hash + ".tmp");
+			FileOutputStream output = new FileOutputStream(tmp);
+			try {
+				output.write(data);
+				output.getFD().sync();
+			} finally {
+				output.close();
+			}
+			if (!tmp.renameTo(file)) {
+				tmp.delete();
+				throw new IOException("Cannot rename " + tmp);
+			}
+			return hash;
+		}
+
+		/**
+		 * Deletes the resource files no script refers to anymore. Only run
+		 * outside of transactions so that rows of a transaction rolled back
+		 * later are not taken into account.
+		 */
+		void gcResourceFiles() {
+			File[] files = resourceDir.listFiles();
+			if (files == null) {
+				return;
+			}
+			HashSet<String> used = new HashSet<String>();
+			Cursor cursor = db.rawQuery("SELECT DISTINCT " + COL_HASH + " FROM " + TBL_RESOURCE, null);
+			try {
+				while (cursor.moveToNext()) {
+					used.add(cursor.getString(0));
+				}
+			} finally {
+				cursor.close();
+			}
+			int n = 0;
+			for (File file : files) {
+				if (!used.contains(file.getName()) && file.delete()) {
+					n++;
+				}
+			}
+			CMN.debug("gcResourceFiles::", n);
+		}
+
+		/**
+		 * @return the hex SHA-256 hash of the UTF-8 encoded content
+		 */
+		private static String hash(String content) {
+			return hash(content.getBytes(Charset.forName("UTF-8")));
+		}
+
+		/**
+		 * @return the hex SHA-256 hash of the data
+		 */
+		private static String hash(byte[] data) {
+			MessageDigest digest;
+			try {
+				digest = MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+			byte[] bytes = digest.digest(data);
+			StringBuilder sb = new StringBuilder(bytes.length * 2);
+			for (byte b : bytes) {
+				sb.append(Character.forDigit((b >> 4) & 0xf, 16))
+						.append(Character.forDigit(b & 0xf, 16));
+			}
+			return sb.toString();
+		}
+
+		/**
+		 * Gets the integer id of a script, from its criteria if they carry it.
+		 *
+		 * @return the id or -1 if the script is not installed
+		 */
+		long getScriptRowId(ScriptId id) {
+			if (id instanceof ScriptCriteria && ((ScriptCriteria) id).rowID > 0) {
+				return ((ScriptCriteria) id).rowID;
+			}
+			synchronized (scriptIdQuery) {
+				SQLiteStatement statement = scriptIdQuery.compile(db);
+				statement.bindString(1, id.getName());
+				statement.bindString(2, id.getNamespace());
+				long start = System.nanoTime();
+				try {
+					return statement.simpleQueryForLong();
+				} catch (SQLiteDoneException e) {
+					return -1;
+				} finally {
+					scriptIdQuery.record(start);
+				}
 			}
 		}
 		
+		/**
+		 * @return the number of changes of the criteria so far
+		 */
+		long selectGeneration() {
+			synchronized (generationQuery) {
+				SQLiteStatement statement = generationQuery.compile(db);
+				long start = System.nanoTime();
+				try {
+					return statement.simpleQueryForLong();
+				} catch (SQLiteDoneException e) {
+					return -1;
+				} finally {
+					generationQuery.record(start);
+				}
+			}
+		}
+
+		/**
+		 * Loads the criteria from the snapshot file.
+		 *
+		 * @return the criteria or null if the snapshot is missing or stale
+		 */
+		ScriptCriteria[] readRegistrySnapshot() {
+			return RegistrySnapshot.read(snapshotFile, selectGeneration());
+		}
+
+		/**
+		 * Writes the criteria to the snapshot file, unless they change while
+		 * being read.
+		 */
+		void writeRegistrySnapshot() {
+			long generation = selectGeneration();
+			long start = System.nanoTime();
+			Cursor cursor = db.rawQuery(SQL_CRITERIA, null);
+			File tmp = new File(snapshotFile.getPath() + ".tmp");
+			try {
+				RegistrySnapshot.write(tmp, generation, cursor);
+			} catch (IOException e) {
+				Log.e(TAG, "Error writing " + tmp, e);
+				tmp.delete();
+				return;
+			} finally {
+				cursor.close();
+				criteriaQuery.record(start);
+			}
+			if (generation != selectGeneration() || !tmp.renameTo(snapshotFile)) {
+				tmp.delete();
+			}
+		}
+
 		private static boolean columnExists(SQLiteDatabase db, String tableName, String columnName) {
 			String query;
 			try (Cursor cursor = db.rawQuery("PRAGMA table_info(" + tableName + ")", null)) {
@@ -718,6 +2412,12 @@ public class ScriptStoreSQLite /*implements ScriptStore*/ {
 					requireArr = (require == null) ? null : require
 							.toArray(new ScriptRequire[require.size()]);
 					content = cursor.getString(cc++);
+					if (content == null) {
+						int length = cursor.getInt(COLS_SCRIPT.length - 2);
+						StringBuilder sb = new StringBuilder(length);
+						appendContent(scriptDeflatedQuery, scriptSegmentQuery, cursor.getLong(COLS_SCRIPT.length - 1), sb);
+						content = sb.toString();
+					}
 					//matchArr = matches.get(cc++);
 				}
 				scriptsArr[i] = new Script(name, namespace, version, matchArr, connectArr
@@ -733,8 +2433,8 @@ public class ScriptStoreSQLite /*implements ScriptStore*/ {
 		
 		
 		public ScriptCriteria getScriptCriteria(ScriptId id) {
-			Cursor cursor = db.query(TBL_MATCH, COLS_PATTERN_ENABLED, "name=? and namespace=? limit 1", new String[]{id.getName(), id.getNamespace()}
-					, null, null, null);
+			Cursor cursor = db.rawQuery(SQL_CRITERIA + " WHERE s." + COL_NAME + " = ? AND s."
+					+ COL_NAMESPACE + " = ? LIMIT 1", new String[]{id.getName(), id.getNamespace()});
 			ScriptCriteria ret = null;
 			if (cursor.moveToNext()) {
 				int cc=0;
@@ -747,6 +2447,7 @@ public class ScriptStoreSQLite /*implements ScriptStore*/ {
 				String _ = cursor.getString(cc++);
 				String[] connect = _==null?null:_.split("\n\0");
 				ret = new ScriptCriteria(name, namespace, version, match, connect, enable_, rights);
+				ret.rowID = cursor.getLong(cc++);
 			}
 			cursor.close();
 			return ret;
@@ -795,10 +2496,11 @@ public class ScriptStoreSQLite /*implements ScriptStore*/ {
 			}
 			else {
 				// select all
-				Cursor cursor = db.query(TBL_MATCH, COLS_PATTERN_ENABLED, null, null
-						, null, null, null);
+				long start = System.nanoTime();
+				Cursor cursor = db.rawQuery(SQL_CRITERIA, null);
 				ScriptCriteria[] ret = null;
-				boolean init = scriptStore.registry.size()==0;
+				ScriptCriteria[] all = new ScriptCriteria[cursor.getCount()];
+				int i = 0;
 				CMN.debug("get all patterns::len=", cursor.getCount());
 				while (cursor.moveToNext()) {
 					int cc=0;
@@ -811,19 +2513,15 @@ public class ScriptStoreSQLite /*implements ScriptStore*/ {
 					String _ = cursor.getString(cc++);
 					String[] connect = _==null?null:_.split("\n\0");
 					ScriptCriteria tmp = new ScriptCriteria(name, namespace, version, match, connect, enable_, rights);
-					ScriptCriteria stored = init?null:scriptStore.registryMap.get(tmp);
-					if (stored == null) {
-						scriptStore.registerScript(tmp);
-					} else {
-						stored.rights = tmp.rights;
-						stored.setEnabled(tmp.isEnabled());
-						tmp = stored;
-					}
+					tmp.rowID = cursor.getLong(cc++);
+					all[i++] = tmp;
 					//CMN.debug("enable_::", enable_, tmp);
 				}
 				cursor.close();
+				criteriaQuery.record(start);
+				scriptStore.registerAllScripts(all);
 				if(debug) {
-					CMN.debug("get all patterns::", scriptStore.registry);
+					CMN.debug("get all patterns::", Arrays.toString(all));
 					CMN.debug(ret);
 				}
 				return ret;
@@ -866,8 +2564,10 @@ public class ScriptStoreSQLite /*implements ScriptStore*/ {
 		 */
 		private Map<ScriptId, String[]> selectPatterns(String tblName, String selection, String[] selectionArgs) {
 			Map<ScriptId, String[]> ret = new HashMap<>();
-			Cursor cursor = db.query(tblName, COLS_PATTERN, selection, selectionArgs
-					, null, null, null);
+			Cursor cursor = db.rawQuery("SELECT s." + COL_NAME + ", s." + COL_NAMESPACE
+					+ ", m." + COL_PATTERNS + " FROM " + tblName + " m JOIN " + TBL_SCRIPT
+					+ " s ON s." + COL_ID + " = m." + COL_SCRIPT_ID
+					+ (selection == null ? "" : " WHERE " + selection), selectionArgs);
 			while (cursor.moveToNext()) {
 				ScriptId id = new ScriptId(cursor.getString(0), cursor.getString(1));
 				ret.put(id, cursor.getString(2).split("\n\0"));
@@ -892,147 +2592,630 @@ public class ScriptStoreSQLite /*implements ScriptStore*/ {
 		private Map<ScriptId, List<ScriptRequire>> selectRequires(
 				String tblName, String selection, String[] selectionArgs) {
 			Map<ScriptId, List<ScriptRequire>> contents = new HashMap<ScriptId, List<ScriptRequire>>();
-			Cursor cursor = db.query(tblName, COLS_REQUIRE, selection,
-					selectionArgs, null, null, null);
+			Cursor cursor = db.rawQuery("SELECT s." + COL_NAME + ", s." + COL_NAMESPACE
+					+ ", r." + COL_DOWNLOADURL + ", r." + COL_HASH + ", length(b." + COL_CONTENT
+					+ "), b." + COL_CODEC + " FROM " + tblName + " r JOIN " + TBL_SCRIPT + " s ON s." + COL_ID
+					+ " = r." + COL_SCRIPT_ID + " JOIN " + TBL_REQUIRE_BLOB + " b ON b."
+					+ COL_HASH + " = r." + COL_HASH
+					+ (selection == null ? "" : " WHERE " + selection), selectionArgs);
 			while (cursor.moveToNext()) {
-				ScriptId id = new ScriptId(cursor.getString(cursor
-						.getColumnIndex(COL_NAME)), cursor.getString(cursor
-						.getColumnIndex(COL_NAMESPACE)));
+				ScriptId id = new ScriptId(cursor.getString(0), cursor.getString(1));
 				List<ScriptRequire> content = contents.get(id);
 				if (content == null) {
 					content = new ArrayList<ScriptRequire>();
 					contents.put(id, content);
 				}
-				String requireUrl = cursor.getString(cursor
-						.getColumnIndex(COL_DOWNLOADURL));
-				String requireContent = cursor.getString(cursor
-						.getColumnIndex(COL_CONTENT));
-				content.add(new ScriptRequire(requireUrl, requireContent));
+				String requireUrl = cursor.getString(2);
+				String hash = cursor.getString(3);
+				// large content is left for the assembler to append; deflated
+				// content is taken to expand about fourfold
+				long length = cursor.getLong(4);
+				if (cursor.getInt(5) == CODEC_DEFLATE) {
+					length *= 4;
+				}
+				ScriptRequire require = new ScriptRequire(requireUrl,
+						length > SEGMENT ? null : selectRequireText(hash));
+				require.setHash(hash);
+				content.add(require);
 			}
 			cursor.close();
 			return contents;
 		}
 
 		/**
-		 * Retrieves resource content from the database.
-		 *
-		 * @param tblName
-		 *            the name of the table to query
-		 * @param selection
-		 *            the selection string (WHERE part of the query with
-		 *            arguments replaced by ?)
-		 * @param selectionArgs
-		 *            the arguments to use in the selection string
-		 * @return matching resources found in the table mapped to script IDs;
-		 *         an empty map if none found
+		 * Gets @require content by hash, the same string for every script
+		 * while it is in use.
 		 */
-		private Map<ScriptId, List<ScriptResource>> selectResources(
-				String tblName, String selection, String[] selectionArgs) {
-			Map<ScriptId, List<ScriptResource>> contents = new HashMap<ScriptId, List<ScriptResource>>();
-			Cursor cursor = db.query(tblName, COLS_RESOURCE, selection,
-					selectionArgs, null, null, null);
-			while (cursor.moveToNext()) {
-				ScriptId id = new ScriptId(cursor.getString(cursor
-						.getColumnIndex(COL_NAME)), cursor.getString(cursor
-						.getColumnIndex(COL_NAMESPACE)));
-				List<ScriptResource> content = contents.get(id);
-				if (content == null) {
-					content = new ArrayList<ScriptResource>();
-					contents.put(id, content);
+		String selectRequireText(String hash) {
+			synchronized (requireTexts) {
+				WeakReference<String> ref = requireTexts.get(hash);
+				String text = ref == null ? null : ref.get();
+				if (text != null) {
+					return text;
 				}
-				String resourceName = cursor.getString(cursor
-						.getColumnIndex(COL_RESOURCENAME));
-				String resourceUrl = cursor.getString(cursor
-						.getColumnIndex(COL_DOWNLOADURL));
-				byte[] resourceData = cursor.getBlob(cursor
-						.getColumnIndex(COL_DATA));
-				content.add(new ScriptResource(resourceName, resourceUrl,
-						resourceData));
 			}
-			cursor.close();
-			return contents;
+			String text;
+			synchronized (requireBlobQuery) {
+				SQLiteStatement statement = requireBlobQuery.compile(db);
+				statement.bindString(1, hash);
+				long start = System.nanoTime();
+				try {
+					text = statement.simpleQueryForString();
+				} catch (SQLiteDoneException e) {
+					text = null;
+				} finally {
+					requireBlobQuery.record(start);
+				}
+			}
+			if (text == null) {
+				StringBuilder sb = new StringBuilder();
+				if (!inflateContent(requireDeflatedQuery, hash, sb)) {
+					return null;
+				}
+				text = sb.toString();
+			}
+			synchronized (requireTexts) {
+				WeakReference<String> ref = requireTexts.get(hash);
+				String shared = ref == null ? null : ref.get();
+				if (shared != null) {
+					return shared;
+				}
+				if (ref != null || requireTexts.size() > 64) {
+					Iterator<WeakReference<String>> iter = requireTexts.values().iterator();
+					while (iter.hasNext()) {
+						if (iter.next().get() == null) {
+							iter.remove();
+						}
+					}
+				}
+				requireTexts.put(hash, new WeakReference<String>(text));
+			}
+			return text;
 		}
 
 		/**
-		 * Fills the selection string and arguments for queries searching for
-		 * script IDs.
-		 * 
-		 * @param ids
-		 *            the script IDs to use as selection arguments (input)
-		 * @param selection
-		 *            the selection string to fill (output)
-		 * @param selectionArgs
-		 *            the arguments to use in the selection string (output)
+		 * Appends @require content without reading it as a whole.
 		 */
-		private void makeScriptIdSelectionArgs(ScriptId[] ids,
-				StringBuilder selection, List<String> selectionArgs) {
-			for (ScriptId id : ids) {
-				selection.append(" OR (").append(COL_NAME).append(" = ? AND ")
-						.append(COL_NAMESPACE).append(" = ?)");
-				selectionArgs.add(id.getName());
-				selectionArgs.add(id.getNamespace());
-			}
-			selection.delete(0, 4);
+		void appendRequireText(String hash, StringBuilder out) {
+			appendContent(requireDeflatedQuery, requireSegmentQuery, hash, out);
 		}
 
 		/**
-		 * Inserts a script into the database.
-		 * 
-		 * @param script
-		 *            the script to insert
-		 * @return -1 if fail
+		 * Opens @require content as UTF-8, inflating it from a blob file
+		 * descriptor or reading one segment per query as the stream is
+		 * consumed.
+		 *
+		 * @return the stream or null if the hash is not stored
 		 */
-		public int insertScript(Script script, long rowId) {
-			final ContentValues fieldsId = new ContentValues();
-			fieldsId.put(COL_NAME, script.getName());
-			fieldsId.put(COL_NAMESPACE, script.getNamespace());
-			List<ContentValues> fieldsExcludes = new ArrayList<ContentValues>();
-			ContentValues fieldsMatch = null;
-			String[] matches = script.getMatch();
-			if (matches != null) { // 必须
-				StringBuilder sb = new StringBuilder();
-				for (String pattern : matches) {
-					sb.append(pattern);
-					sb.append("\n\0");
+		InputStream openRequire(String hash) {
+			// the background migration may deflate the row between the reads
+			for (int attempt = 0; attempt < 2; attempt++) {
+				InputStream in = openDeflated(requireDeflatedQuery, hash);
+				if (in != null) {
+					return in;
 				}
-				fieldsMatch = new ContentValues(fieldsId);
-				fieldsMatch.put(COL_PATTERNS, sb.toString());
-				fieldsMatch.put(COL_ENABLED, script.isEnabled());
-				fieldsMatch.put(COL_RIGHTS, script.rights);
-				fieldsMatch.put(COL_VERSION, script.getVersion());
-				sb.setLength(0);
-				CMN.debug("script.connect::", script.connect);
-				if (script.connect!=null) {
-					for (String pattern : script.connect) {
-						sb.append(pattern);
-						sb.append("\n\0");
-					}
+				SegmentInputStream segments = new SegmentInputStream(requireSegmentQuery, hash);
+				if (segments.fill()) {
+					return segments;
 				}
-				fieldsMatch.put(COL_CONNECT, sb.toString());
 			}
-			List<ContentValues> fieldsRequires = new ArrayList<ContentValues>();
-			ScriptRequire[] requires = script.getRequires();
-			if (requires != null) {
-				for (ScriptRequire require : requires) {
-					if (require.getContent() != null) {
-						ContentValues fieldsRequire = new ContentValues(fieldsId);
-						fieldsRequire.put(COL_DOWNLOADURL, require.getUrl());
-						fieldsRequire.put(COL_CONTENT, require.getContent());
-						fieldsRequires.add(fieldsRequire);
+			return null;
+		}
+
+		/**
+		 * @return a stream inflating the content of the row identified by
+		 *         key, or null if it is missing or not deflated
+		 */
+		private InputStream openDeflated(TimedStatement query, Object key) {
+			if (!DEFLATE) {
+				return null;
+			}
+			synchronized (query) {
+				SQLiteStatement statement = query.compile(db);
+				if (key instanceof Long) {
+					statement.bindLong(1, (Long) key);
+				} else {
+					statement.bindString(1, (String) key);
+				}
+				long start = System.nanoTime();
+				try {
+					ParcelFileDescriptor fd = statement.simpleQueryForBlobFileDescriptor();
+					if (fd == null) {
+						return null;
 					}
+					final Inflater inflater = new Inflater();
+					return new InflaterInputStream(new ParcelFileDescriptor.AutoCloseInputStream(fd),
+							inflater, 8192) {
+						@Override
+						public void close() throws IOException {
+							try {
+								super.close();
+							} finally {
+								inflater.end();
+							}
+						}
+					};
+				} catch (SQLiteDoneException e) {
+					return null;
+				} finally {
+					query.record(start);
 				}
 			}
-			List<ContentValues> fieldsResources = new ArrayList<ContentValues>();
-			ScriptResource[] resources = script.getResources();
-			if (resources != null) {
-				for (ScriptResource resource : resources) {
-					if (resource.getData() != null) {
-						ContentValues fieldsResource = new ContentValues(fieldsId);
-						fieldsResource.put(COL_RESOURCENAME, resource.getName());
-						fieldsResource.put(COL_DOWNLOADURL, resource.getUrl());
-						fieldsResource.put(COL_DATA, resource.getData());
-						fieldsResources.add(fieldsResource);
-					}
+		}
+
+		/**
+		 * Plain content as UTF-8, read one segment of {@link #SEGMENT} chars
+		 * at a time. Fails with an IOException if the row is deflated or
+		 * deleted while read.
+		 */
+		private class SegmentInputStream extends InputStream {
+			private final TimedStatement query;
+			private final Object key;
+			private long start = 1;
+			private byte[] bytes;
+			private int pos;
+			private boolean last;
+
+			SegmentInputStream(TimedStatement query, Object key) {
+				this.query = query;
+				this.key = key;
+			}
+
+			/**
+			 * Reads the next segment.
+			 *
+			 * @return false if the row is missing or not plain
+			 */
+			boolean fill() {
+				String segment = selectSegment(query, key, start);
+				if (segment == null) {
+					return false;
+				}
+				start += SEGMENT;
+				last = segment.length() < SEGMENT;
+				bytes = segment.getBytes(UTF_8);
+				pos = 0;
+				return true;
+			}
+
+			@Override
+			public int read() throws IOException {
+				byte[] one = new byte[1];
+				return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				while (pos == bytes.length) {
+					if (last) {
+						return -1;
+					}
+					if (!fill()) {
+						throw new IOException("Content changed while read: " + key);
+					}
+				}
+				int n = Math.min(len, bytes.length - pos);
+				System.arraycopy(bytes, pos, b, off, n);
+				pos += n;
+				return n;
+			}
+		}
+
+		/**
+		 * Appends content stored either way, inflating it or reading it in
+		 * segments.
+		 *
+		 * @param deflated
+		 *            selecting the content of the row identified by key if
+		 *            it is deflated
+		 * @param segments
+		 *            selecting substr(content, start, length) of the row
+		 *            identified by key if it is plain
+		 */
+		private void appendContent(TimedStatement deflated, TimedStatement segments,
+				Object key, StringBuilder out) {
+			int mark = out.length();
+			// the background migration may deflate the row between the reads
+			for (int attempt = 0; attempt < 2; attempt++) {
+				if (inflateContent(deflated, key, out) || appendSegments(segments, key, out)) {
+					return;
+				}
+				out.setLength(mark);
+			}
+		}
+
+		/**
+		 * Inflates deflated content straight into out, streaming it from a
+		 * blob file descriptor instead of a CursorWindow.
+		 *
+		 * @return false if the row is missing or not deflated
+		 */
+		private boolean inflateContent(TimedStatement query, Object key, StringBuilder out) {
+			if (!DEFLATE) {
+				return false;
+			}
+			synchronized (query) {
+				SQLiteStatement statement = query.compile(db);
+				if (key instanceof Long) {
+					statement.bindLong(1, (Long) key);
+				} else {
+					statement.bindString(1, (String) key);
+				}
+				long start = System.nanoTime();
+				int mark = out.length();
+				try {
+					ParcelFileDescriptor fd = statement.simpleQueryForBlobFileDescriptor();
+					if (fd == null) {
+						return false;
+					}
+					Inflater inflater = new Inflater();
+					Reader reader = new InputStreamReader(new InflaterInputStream(
+							new ParcelFileDescriptor.AutoCloseInputStream(fd), inflater, 8192), UTF_8);
+					try {
+						char[] buffer = new char[8192];
+						int n;
+						while ((n = reader.read(buffer)) != -1) {
+							out.append(buffer, 0, n);
+						}
+					} finally {
+						reader.close();
+						inflater.end();
+					}
+					return true;
+				} catch (SQLiteDoneException e) {
+					return false;
+				} catch (IOException e) {
+					Log.e(TAG, "Error inflating " + query.name + " " + key, e);
+					out.setLength(mark);
+					return false;
+				} finally {
+					query.record(start);
+				}
+			}
+		}
+
+		/**
+		 * @return the UTF-8 bytes of text, deflated at the fastest level
+		 */
+		private static byte[] deflate(String text) {
+			Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			try {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream(text.length() / 3 + 64);
+				Writer writer = new OutputStreamWriter(new DeflaterOutputStream(bytes, deflater, 8192), UTF_8);
+				writer.write(text);
+				writer.close();
+				return bytes.toByteArray();
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			} finally {
+				deflater.end();
+			}
+		}
+
+		/**
+		 * Deflates a batch of rows stored plain, the part of the V16
+		 * migration that runs in the background. Rows deflated meanwhile
+		 * are left alone.
+		 *
+		 * @return the number of rows deflated
+		 */
+		int deflatePlainRows(int limit) {
+			if (!DEFLATE) {
+				return 0;
+			}
+			db.beginTransaction();
+			try {
+				int n = deflatePlainRows(TBL_SCRIPT, COL_ID, scriptSegmentQuery, limit)
+						+ deflatePlainRows(TBL_REQUIRE_BLOB, COL_HASH, requireSegmentQuery, limit);
+				db.setTransactionSuccessful();
+				CMN.debug("deflatePlainRows::", n);
+				return n;
+			} finally {
+				db.endTransaction();
+			}
+		}
+
+		private int deflatePlainRows(String table, String keyCol, TimedStatement segments, int limit) {
+			boolean byId = COL_ID.equals(keyCol);
+			ArrayList<Object> keys = new ArrayList<Object>();
+			Cursor cursor = db.rawQuery("SELECT " + keyCol + " FROM " + table + " WHERE "
+					+ COL_CODEC + " = " + CODEC_NONE + " AND length(" + COL_CONTENT + ") >= "
+					+ MIN_DEFLATE + " LIMIT " + limit, null);
+			try {
+				while (cursor.moveToNext()) {
+					keys.add(byId ? (Object) cursor.getLong(0) : cursor.getString(0));
+				}
+			} finally {
+				cursor.close();
+			}
+			for (Object key : keys) {
+				StringBuilder sb = new StringBuilder();
+				if (appendSegments(segments, key, sb)) {
+					db.execSQL("UPDATE " + table + " SET " + COL_CONTENT + " = ?, " + COL_CODEC
+							+ " = " + CODEC_DEFLATE + " WHERE " + keyCol + " = ? AND " + COL_CODEC
+							+ " = " + CODEC_NONE, new Object[] { deflate(sb.toString()), key });
+				}
+			}
+			return keys.size();
+		}
+
+		/**
+		 * @return whether content is stored deflated
+		 */
+		private static boolean shouldDeflate(String content) {
+			return DEFLATE && content != null && content.length() >= MIN_DEFLATE;
+		}
+
+		/**
+		 * Appends a TEXT column in segments of {@link #SEGMENT} chars, so that
+		 * no single read comes near the CursorWindow limit. Only the window is
+		 * bounded: out grows to the whole text.
+		 *
+		 * @param query
+		 *            selecting substr(column, start, length) of the row
+		 *            identified by key
+		 * @param key
+		 *            a Long or String identifying the row
+		 * @return false if the row is missing or not plain
+		 */
+		private boolean appendSegments(TimedStatement query, Object key, StringBuilder out) {
+			synchronized (query) {
+				// substr counts characters where Java counts UTF-16 units, so a
+				// short last segment may take one more, empty, read
+				for (long start = 1; ; start += SEGMENT) {
+					String segment = selectSegment(query, key, start);
+					if (segment == null) {
+						return false;
+					}
+					out.append(segment);
+					if (segment.length() < SEGMENT) {
+						return true;
+					}
+				}
+			}
+		}
+
+		/**
+		 * @return substr(column, start, {@link #SEGMENT}) of the row
+		 *         identified by key, or null if it is missing or not plain
+		 */
+		private String selectSegment(TimedStatement query, Object key, long start) {
+			synchronized (query) {
+				SQLiteStatement statement = query.compile(db);
+				statement.bindLong(1, start);
+				statement.bindLong(2, SEGMENT);
+				if (key instanceof Long) {
+					statement.bindLong(3, (Long) key);
+				} else {
+					statement.bindString(3, (String) key);
+				}
+				long t = System.nanoTime();
+				try {
+					return statement.simpleQueryForString();
+				} catch (SQLiteDoneException e) {
+					return null;
+				} finally {
+					query.record(t);
+				}
+			}
+		}
+
+		/**
+		 * Links a script to the content of a @require URL, storing the
+		 * content unless another script already did.
+		 */
+		private void linkRequire(long scriptId, String url, String content) {
+			String hash = hash(content);
+			synchronized (requireBlobInsert) {
+				SQLiteStatement statement = requireBlobInsert.compile(db);
+				statement.bindString(1, hash);
+				if (shouldDeflate(content)) {
+					statement.bindBlob(2, deflate(content));
+					statement.bindLong(3, CODEC_DEFLATE);
+				} else {
+					statement.bindString(2, content);
+					statement.bindLong(3, CODEC_NONE);
+				}
+				long start = System.nanoTime();
+				try {
+					statement.executeInsert();
+				} finally {
+					requireBlobInsert.record(start);
+				}
+			}
+			synchronized (requireLink) {
+				SQLiteStatement statement = requireLink.compile(db);
+				statement.bindLong(1, scriptId);
+				statement.bindString(2, url);
+				statement.bindString(3, hash);
+				long start = System.nanoTime();
+				try {
+					statement.executeInsert();
+				} finally {
+					requireLink.record(start);
+				}
+			}
+		}
+
+		/**
+		 * Links a script to the content this or another script stored for a
+		 * @require URL.
+		 *
+		 * @return false if no script links to the URL anymore, e.g. since the
+		 *         only one was deleted after the script was parsed
+		 */
+		private boolean linkKnownRequire(long scriptId, String url) {
+			synchronized (requireLinkKnown) {
+				SQLiteStatement statement = requireLinkKnown.compile(db);
+				statement.bindLong(1, scriptId);
+				statement.bindString(2, url);
+				long start = System.nanoTime();
+				try {
+					return statement.executeInsert() != -1;
+				} finally {
+					requireLinkKnown.record(start);
+				}
+			}
+		}
+
+		/**
+		 * Deletes the @require content no script links to anymore.
+		 */
+		private void gcRequireBlobs() {
+			synchronized (requireBlobGc) {
+				SQLiteStatement statement = requireBlobGc.compile(db);
+				long start = System.nanoTime();
+				try {
+					int n = statement.executeUpdateDelete();
+					CMN.debug("gcRequireBlobs::", n);
+				} finally {
+					requireBlobGc.record(start);
+				}
+			}
+		}
+
+		/**
+		 * @return true if any script stored content for the @require URL
+		 */
+		public boolean isRequireKnown(String url) {
+			synchronized (knownRequireQuery) {
+				SQLiteStatement statement = knownRequireQuery.compile(db);
+				statement.bindString(1, url);
+				long start = System.nanoTime();
+				try {
+					return statement.simpleQueryForLong() == 1;
+				} catch (SQLiteDoneException e) {
+					return false;
+				} finally {
+					knownRequireQuery.record(start);
+				}
+			}
+		}
+
+		/**
+		 * Retrieves resource content from the database.
+		 *
+		 * @param tblName
+		 *            the name of the table to query
+		 * @param selection
+		 *            the selection string (WHERE part of the query with
+		 *            arguments replaced by ?)
+		 * @param selectionArgs
+		 *            the arguments to use in the selection string
+		 * @return matching resources found in the table mapped to script IDs;
+		 *         an empty map if none found
+		 */
+		private Map<ScriptId, List<ScriptResource>> selectResources(
+				String tblName, String selection, String[] selectionArgs) {
+			Map<ScriptId, List<ScriptResource>> contents = new HashMap<ScriptId, List<ScriptResource>>();
+			Cursor cursor = db.rawQuery("SELECT s." + COL_NAME + ", s." + COL_NAMESPACE
+					+ ", r." + COL_RESOURCENAME + ", r." + COL_DOWNLOADURL + ", r." + COL_HASH
+					+ " FROM " + tblName + " r JOIN " + TBL_SCRIPT + " s ON s." + COL_ID
+					+ " = r." + COL_SCRIPT_ID
+					+ (selection == null ? "" : " WHERE " + selection), selectionArgs);
+			while (cursor.moveToNext()) {
+				ScriptId id = new ScriptId(cursor.getString(0), cursor.getString(1));
+				List<ScriptResource> content = contents.get(id);
+				if (content == null) {
+					content = new ArrayList<ScriptResource>();
+					contents.put(id, content);
+				}
+				String resourceName = cursor.getString(2);
+				String resourceUrl = cursor.getString(3);
+				content.add(new ScriptResource(resourceName, resourceUrl,
+						new File(resourceDir, cursor.getString(4))));
+			}
+			cursor.close();
+			return contents;
+		}
+
+		/**
+		 * Fills the selection string and arguments for queries searching for
+		 * script IDs.
+		 * 
+		 * @param ids
+		 *            the script IDs to use as selection arguments (input)
+		 * @param selection
+		 *            the selection string to fill (output)
+		 * @param selectionArgs
+		 *            the arguments to use in the selection string (output)
+		 */
+		private void makeScriptIdSelectionArgs(ScriptId[] ids,
+				StringBuilder selection, List<String> selectionArgs) {
+			for (ScriptId id : ids) {
+				selection.append(" OR (").append(COL_NAME).append(" = ? AND ")
+						.append(COL_NAMESPACE).append(" = ?)");
+				selectionArgs.add(id.getName());
+				selectionArgs.add(id.getNamespace());
+			}
+			selection.delete(0, 4);
+		}
+
+		/**
+		 * Result of {@link #insertScript} when a @require left undownloaded
+		 * since it was known at parse time is no longer stored.
+		 */
+		static final int REQUIRE_GONE = -3;
+
+		/**
+		 * Inserts a script into the database.
+		 * 
+		 * @param script
+		 *            the script to insert
+		 * @return 0 if inserted, negative if failed and rolled back,
+		 *         {@link #REQUIRE_GONE} if the caller should download the
+		 *         @require'd scripts and retry
+		 */
+		public int insertScript(Script script, long rowId) {
+			final ContentValues fieldsId = new ContentValues();
+			fieldsId.put(COL_NAME, script.getName());
+			fieldsId.put(COL_NAMESPACE, script.getNamespace());
+			List<ContentValues> fieldsExcludes = new ArrayList<ContentValues>();
+			ContentValues fieldsMatch = null;
+			String[] matches = script.getMatch();
+			if (matches != null) { // 必须
+				StringBuilder sb = new StringBuilder();
+				for (String pattern : matches) {
+					sb.append(pattern);
+					sb.append("\n\0");
+				}
+				fieldsMatch = new ContentValues();
+				fieldsMatch.put(COL_PATTERNS, sb.toString());
+				fieldsMatch.put(COL_ENABLED, script.isEnabled());
+				fieldsMatch.put(COL_RIGHTS, script.rights);
+				fieldsMatch.put(COL_VERSION, script.getVersion());
+				sb.setLength(0);
+				CMN.debug("script.connect::", script.connect);
+				if (script.connect!=null) {
+					for (String pattern : script.connect) {
+						sb.append(pattern);
+						sb.append("\n\0");
+					}
+				}
+				fieldsMatch.put(COL_CONNECT, sb.toString());
+			}
+			ScriptRequire[] requires = script.getRequires();
+			List<ContentValues> fieldsResources = new ArrayList<ContentValues>();
+			ScriptResource[] resources = script.getResources();
+			if (resources != null) {
+				for (ScriptResource resource : resources) {
+					byte[] data = resource.getFile() == null ? resource.getData() : null;
+					if (data != null) {
+						// identical data of other scripts shares the file
+						String hash;
+						try {
+							hash = writeResourceFile(resourceDir, data);
+						} catch (IOException e) {
+							Log.e(TAG, "Error storing resource " + resource.getName() + " in " + resourceDir);
+							return -1;
+						}
+						ContentValues fieldsResource = new ContentValues();
+						fieldsResource.put(COL_RESOURCENAME, resource.getName());
+						fieldsResource.put(COL_DOWNLOADURL, resource.getUrl());
+						fieldsResource.put(COL_HASH, hash);
+						fieldsResource.put(COL_SIZE, data.length);
+						fieldsResources.add(fieldsResource);
+					}
 				}
 			}
 			ContentValues fieldsScript = new ContentValues(fieldsId);
@@ -1045,11 +3228,18 @@ public class ScriptStoreSQLite /*implements ScriptStore*/ {
 			fieldsScript.put(COL_RUNAT, script.hasRightToRun());
 			fieldsScript.put(COL_UNWRAP, script.hasRightUnwrap());
 			fieldsScript.put(COL_VERSION, script.getVersion());
-			fieldsScript.put(COL_CONTENT, script.getContent());
+			if (shouldDeflate(script.getContent())) {
+				fieldsScript.put(COL_CONTENT, deflate(script.getContent()));
+				fieldsScript.put(COL_CODEC, CODEC_DEFLATE);
+			} else {
+				fieldsScript.put(COL_CONTENT, script.getContent());
+				fieldsScript.put(COL_CODEC, CODEC_NONE);
+			}
 			fieldsScript.put(COL_ENABLED, script.isEnabled());
 			fieldsScript.put(COL_RIGHTS, script.rights);
 			fieldsScript.put(COL_TIME, System.currentTimeMillis());
 			fieldsScript.put(COL_EXTERNALS, script.getExternalsCount());
+			long scriptId = rowId;
 			db.beginTransaction();
 			try {
 				if(rowId!=-1) {
@@ -1058,10 +3248,10 @@ public class ScriptStoreSQLite /*implements ScriptStore*/ {
 						return -1;
 					}
 					try { // 编辑脚本后，删除不再依赖的resource、require
-						String sqlDelete = "name=? and namespace=?";
+						String sqlDelete = COL_SCRIPT_ID + "=?";
 						String[] args = null;
 						ArrayList<String> tmpArr = new ArrayList<>();
-						tmpArr.clear(); tmpArr.add(script.getName()); tmpArr.add(script.getNamespace());
+						tmpArr.clear(); tmpArr.add(Long.toString(scriptId));
 						if (requires != null && requires.length > 0) {
 							sqlDelete += " and (";
 							boolean first = false;
@@ -1076,8 +3266,8 @@ public class ScriptStoreSQLite /*implements ScriptStore*/ {
 						args = tmpArr.toArray(new String[0]);
 						int n = db.delete(TBL_REQUIRE, sqlDelete, args);
 						CMN.debug("sqlDelete::", sqlDelete, n);
-						sqlDelete = "name=? and namespace=?";
-						tmpArr.clear(); tmpArr.add(script.getName()); tmpArr.add(script.getNamespace());
+						sqlDelete = COL_SCRIPT_ID + "=?";
+						tmpArr.clear(); tmpArr.add(Long.toString(scriptId));
 						if (resources != null && resources.length > 0) {
 							sqlDelete += " and (";
 							boolean first = false;
@@ -1098,28 +3288,39 @@ public class ScriptStoreSQLite /*implements ScriptStore*/ {
 					}
 				} else {
 					//fieldsScript.put("create", System.currentTimeMillis());
-					if (db.insert(TBL_SCRIPT, null, fieldsScript) == -1) {
+					if ((scriptId = db.insert(TBL_SCRIPT, null, fieldsScript)) == -1) {
 						Log.e(TAG, "Error inserting new script into the database (table " + TBL_SCRIPT + ")");
 						return -1;
 					}
 				}
 				
 				if (fieldsMatch!=null) {
+					fieldsMatch.put(COL_SCRIPT_ID, scriptId);
 					if (db.insertWithOnConflict(TBL_MATCH, null, fieldsMatch, SQLiteDatabase.CONFLICT_REPLACE) == -1) {
 						Log.e(TAG, "Error inserting new script into the database (table " + TBL_MATCH + ")");
 						return -2;
 					}
 				} else {
-					db.delete(TBL_MATCH, COL_NAME + " = ? AND " + COL_NAMESPACE
-									+ " = ?", new String[] { script.getName(), script.getNamespace() });
+					db.delete(TBL_MATCH, COL_SCRIPT_ID + " = ?", new String[] { Long.toString(scriptId) });
 				}
-				for (ContentValues fieldsRequire : fieldsRequires) {
-					if (db.insertWithOnConflict(TBL_REQUIRE, null, fieldsRequire, SQLiteDatabase.CONFLICT_REPLACE) == -1) {
+				if (requires != null) {
+					try {
+						for (ScriptRequire require : requires) {
+							if (require.getContent() != null) {
+								linkRequire(scriptId, require.getUrl(), require.getContent());
+							} else if (!linkKnownRequire(scriptId, require.getUrl())) {
+								// known at parse time but gone since, the caller downloads it
+								return REQUIRE_GONE;
+							}
+						}
+					} catch (SQLiteException e) {
 						Log.e(TAG, "Error inserting new script into the database (table " + TBL_REQUIRE + ")");
 						return -2;
 					}
 				}
+				gcRequireBlobs();
 				for (ContentValues fieldsResource : fieldsResources) {
+					fieldsResource.put(COL_SCRIPT_ID, scriptId);
 					if (db.insertWithOnConflict(TBL_RESOURCE, null, fieldsResource, SQLiteDatabase.CONFLICT_REPLACE) == -1) {
 						Log.e(TAG, "Error inserting new script into the database (table " + TBL_RESOURCE + ")");
 						return -2;
@@ -1143,6 +3344,7 @@ public class ScriptStoreSQLite /*implements ScriptStore*/ {
 			try {
 				db.delete(TBL_SCRIPT, COL_NAME + " = ? AND " + COL_NAMESPACE + " = ?",
 						new String[] { id.getName(), id.getNamespace() });
+				gcRequireBlobs();
 				db.setTransactionSuccessful();
 			} finally {
 				db.endTransaction();
@@ -1165,9 +3367,32 @@ public class ScriptStoreSQLite /*implements ScriptStore*/ {
 				db.update(TBL_SCRIPT, fields, COL_NAME + " = ? AND "
 						+ COL_NAMESPACE + " = ?", new String[] { id.getName(),
 						id.getNamespace() });
-				db.update(TBL_MATCH, fields, COL_NAME + " = ? AND "
+				db.update(TBL_MATCH, fields, SCRIPT_ID_SELECTION,
+						new String[] { id.getName(), id.getNamespace() });
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
+		}
+
+		/**
+		 * Updates the rights column of a script in the database.
+		 *
+		 * @param id
+		 *            the ID of the script to update
+		 * @param rights
+		 *            the new rights bit flags
+		 */
+		public void updateScriptRights(ScriptId id, long rights) {
+			ContentValues fields = new ContentValues();
+			fields.put(COL_RIGHTS, rights);
+			db.beginTransaction();
+			try {
+				db.update(TBL_SCRIPT, fields, COL_NAME + " = ? AND "
 						+ COL_NAMESPACE + " = ?", new String[] { id.getName(),
 						id.getNamespace() });
+				db.update(TBL_MATCH, fields, SCRIPT_ID_SELECTION,
+						new String[] { id.getName(), id.getNamespace() });
 				db.setTransactionSuccessful();
 			} finally {
 				db.endTransaction();
@@ -1182,9 +3407,8 @@ public class ScriptStoreSQLite /*implements ScriptStore*/ {
 		 * @return an array of all names or an empty array if none found
 		 */
 		public String[] selectValueNames(ScriptId id) {
-			String selection = COL_NAME + " = ? AND " + COL_NAMESPACE + " = ?";
-			String[] selectionArgs = new String[] { id.getName(),
-					id.getNamespace() };
+			String selection = COL_SCRIPT_ID + " = ?";
+			String[] selectionArgs = new String[] { Long.toString(getScriptRowId(id)) };
 			Cursor cursor = db.query(TBL_VALUE, new String[] { COL_VALUENAME },
 					selection, selectionArgs, null, null, null);
 			ArrayList<String> valueNames = new ArrayList<String>();
@@ -1196,67 +3420,82 @@ public class ScriptStoreSQLite /*implements ScriptStore*/ {
 		}
 
 		/**
-		 * Retrieves the value identified by name owned by id.
-		 * 
+		 * Retrieves all name/value pairs owned by id.
+		 *
 		 * @param id
 		 *            the owner script
-		 * @param name
-		 *            the key
-		 * @return the value belonging to key and script, null if none found
+		 * @return a map of all values, empty if none found
 		 */
-		public String selectValue(ScriptId id, String name) {
-			String selection = COL_NAME + " = ? AND " + COL_NAMESPACE
-					+ " = ? AND " + COL_VALUENAME + " = ?";
-			String[] selectionArgs = new String[] { id.getName(),
-					id.getNamespace(), name };
-			Cursor cursor = db.query(TBL_VALUE, new String[] { COL_VALUE },
+		public HashMap<String, String> selectValues(ScriptId id) {
+			String selection = COL_SCRIPT_ID + " = ?";
+			String[] selectionArgs = new String[] { Long.toString(getScriptRowId(id)) };
+			long start = System.nanoTime();
+			Cursor cursor = db.query(TBL_VALUE, new String[] { COL_VALUENAME, COL_VALUE },
 					selection, selectionArgs, null, null, null);
+			HashMap<String, String> values = new HashMap<String, String>();
 			try {
-				if (cursor.moveToFirst()) {
-					return cursor.getString(0); // todo check
+				while (cursor.moveToNext()) {
+					values.put(cursor.getString(0), cursor.getString(1));
 				}
 			} finally {
 				cursor.close();
+				valuesQuery.record(start);
 			}
-			return null;
+			return values;
 		}
-		
-		
+
 		/**
-		 * Updates or inserts a name/value pair owned by id in the database.
+		 * Retrieves the value identified by name owned by id.
 		 * 
 		 * @param id
 		 *            the owner script
 		 * @param name
 		 *            the key
-		 * @param value
-		 *            the updated or new value
+		 * @return the value belonging to key and script, null if none found
 		 */
-		public void updateOrInsertValue(ScriptId id, String name, String value) {
-			db.beginTransaction();
-			ContentValues cv = new ContentValues();
-			cv.put(COL_VALUE, value);
-			try {
-				int upd = db.update(TBL_VALUE, cv, COL_NAME + "=? AND " + COL_NAMESPACE
-								+ "=? AND " + COL_VALUENAME + "=?"
-						, new String[]{id.getName(), id.getNamespace(), name});
-				if (upd != 1) {
-					cv.put(COL_NAME, id.getName());
-					cv.put(COL_NAMESPACE, id.getNamespace());
-					cv.put(COL_VALUENAME, name);
-					long insert = db.insert(TBL_VALUE, null, cv);
-					//CMN.debug("insert::", insert);
-					if (insert == -1) {
-						Log.e(TAG, "Error inserting new value into the database (table " + TBL_VALUE + ")");
-					} else {
-						db.setTransactionSuccessful();
-					}
-				} else {
-					db.setTransactionSuccessful();
+		public String selectValue(ScriptId id, String name) {
+			long scriptId = getScriptRowId(id);
+			synchronized (valueQuery) {
+				SQLiteStatement statement = valueQuery.compile(db);
+				statement.bindLong(1, scriptId);
+				statement.bindString(2, name);
+				long start = System.nanoTime();
+				try {
+					return statement.simpleQueryForString();
+				} catch (SQLiteDoneException e) {
+					return null;
+				} finally {
+					valueQuery.record(start);
+				}
+			}
+		}
+		
+		
+		/**
+		 * Updates or inserts a name/value pair owned by id in the database.
+		 * 
+		 * @param id
+		 *            the owner script
+		 * @param name
+		 *            the key
+		 * @param value
+		 *            the updated or new value
+		 */
+		public void updateOrInsertValue(ScriptId id, String name, String value) {
+			long scriptId = getScriptRowId(id);
+			synchronized (valueUpsert) {
+				SQLiteStatement statement = valueUpsert.compile(db);
+				statement.bindLong(1, scriptId);
+				statement.bindString(2, name);
+				statement.bindString(3, value);
+				long start = System.nanoTime();
+				try {
+					statement.executeInsert();
+				} catch (SQLiteException e) {
+					Log.e(TAG, "Error inserting new value into the database (table " + TBL_VALUE + ")");
+				} finally {
+					valueUpsert.record(start);
 				}
-				//CMN.debug("upd::", upd, id, name, value);
-			} finally {
-				db.endTransaction();
 			}
 		}
 
@@ -1269,39 +3508,383 @@ public class ScriptStoreSQLite /*implements ScriptStore*/ {
 		 *            the key
 		 */
 		public void deleteValue(ScriptId id, String name) {
-			String selection = COL_NAME + " = ? AND " + COL_NAMESPACE
-					+ " = ? AND " + COL_VALUENAME + " = ?";
-			String[] selectionArgs = new String[] { id.getName(),
-					id.getNamespace(), name };
+			long scriptId = getScriptRowId(id);
+			synchronized (valueDelete) {
+				SQLiteStatement statement = valueDelete.compile(db);
+				statement.bindLong(1, scriptId);
+				statement.bindString(2, name);
+				long start = System.nanoTime();
+				try {
+					statement.executeUpdateDelete();
+				} finally {
+					valueDelete.record(start);
+				}
+			}
+		}
+
+		/**
+		 * Writes a batch of name/value pairs in a single transaction.
+		 *
+		 * @param values
+		 *            the values to write per owner script, a value of
+		 *            {@link ValueBuffer#DELETED} deletes the pair
+		 */
+		public void writeValues(Map<ScriptId, ? extends Map<String, String>> values) {
+			// always locked in this order, and before scriptIdQuery
+			synchronized (valueUpsert) {
+				synchronized (valueDelete) {
+					writeValues(values, valueUpsert.compile(db), valueDelete.compile(db));
+				}
+			}
+		}
+
+		private void writeValues(Map<ScriptId, ? extends Map<String, String>> values,
+				SQLiteStatement upsert, SQLiteStatement delete) {
 			db.beginTransaction();
 			try {
-				db.delete(TBL_VALUE, selection, selectionArgs);
+				for (Map.Entry<ScriptId, ? extends Map<String, String>> script : values.entrySet()) {
+					ScriptId id = script.getKey();
+					long scriptId = getScriptRowId(id);
+					if (scriptId == -1) {
+						// the script was deleted in the meantime
+						Log.e(TAG, "Error writing values of " + id);
+						continue;
+					}
+					for (Map.Entry<String, String> entry : script.getValue().entrySet()) {
+						String value = entry.getValue();
+						SQLiteStatement statement = value == ValueBuffer.DELETED ? delete : upsert;
+						statement.bindLong(1, scriptId);
+						statement.bindString(2, entry.getKey());
+						long start = System.nanoTime();
+						try {
+							if (statement == delete) {
+								delete.executeUpdateDelete();
+							} else {
+								upsert.bindString(3, value);
+								upsert.executeInsert();
+							}
+						} catch (SQLiteException e) {
+							Log.e(TAG, "Error writing value " + entry.getKey() + " of " + id);
+						} finally {
+							(statement == delete ? valueDelete : valueUpsert).record(start);
+						}
+					}
+				}
 				db.setTransactionSuccessful();
 			} finally {
 				db.endTransaction();
 			}
 		}
-		
+
 		public boolean scriptHasRequire(ScriptId scriptId, String required, boolean js) {
-			Cursor cursor = db.rawQuery("select rowid from " + (js ? TBL_REQUIRE : TBL_RESOURCE) + " where name=? and namespace=? and " + (js ? COL_DOWNLOADURL : COL_RESOURCENAME) + "=? limit 1"
-					, new String[]{scriptId.getName(), scriptId.getNamespace(), required});
-			boolean ret = cursor.getCount() > 0;
-			cursor.close();
-			return ret;
+			long rowId = getScriptRowId(scriptId);
+			TimedStatement query = js ? requireQuery : resourceQuery;
+			synchronized (query) {
+				SQLiteStatement statement = query.compile(db);
+				statement.bindLong(1, rowId);
+				statement.bindString(2, required);
+				long start = System.nanoTime();
+				try {
+					return statement.simpleQueryForLong() == 1;
+				} catch (SQLiteDoneException e) {
+					return false;
+				} finally {
+					query.record(start);
+				}
+			}
 		}
 		
 		ScriptResource getResource(ScriptId scriptId, String resourceName) {
 			ScriptResource ret = null;
-			Cursor cursor = db.query(TBL_RESOURCE, COLS_RESOURCE_DATA, "name=? and namespace=? and resource_name=? limit 1"
-					, new String[]{scriptId.getName(), scriptId.getName(), resourceName}
+			Cursor cursor = db.query(TBL_RESOURCE, COLS_RESOURCE_FILE, COL_SCRIPT_ID + "=? and resource_name=? limit 1"
+					, new String[]{Long.toString(getScriptRowId(scriptId)), resourceName}
 					, null, null, null);
 			if (cursor.moveToNext()) {
-				ret = new ScriptResource(resourceName, null, cursor.getBlob(cursor
-								.getColumnIndex(COL_DATA)));
+				ret = new ScriptResource(resourceName, cursor.getString(0),
+						new File(resourceDir, cursor.getString(1)));
 			}
 			cursor.close();
 			return ret;
 		}
+
+		File[] selectResourceFiles(ScriptId scriptId) {
+			Cursor cursor = db.rawQuery("SELECT DISTINCT " + COL_HASH + " FROM " + TBL_RESOURCE
+					+ " WHERE " + COL_SCRIPT_ID + " = ?",
+					new String[] { Long.toString(getScriptRowId(scriptId)) });
+			try {
+				File[] files = new File[cursor.getCount()];
+				for (int i = 0; cursor.moveToNext(); i++) {
+					files[i] = new File(resourceDir, cursor.getString(0));
+				}
+				return files;
+			} finally {
+				cursor.close();
+			}
+		}
+	}
+
+	/**
+	 * An immutable version of the registered scripts. Writers build the next
+	 * one under the store's registry lock and publish it through a volatile
+	 * field, so that bridge threads and URL matching read a consistent
+	 * version without locking. Published criteria are not changed: a change
+	 * registers a copy that keeps the runtime fields of the one it replaces.
+	 */
+	static final class Registry {
+
+		/** Low bits of a runtime id: the slot in {@link #slots}. */
+		static final int SLOT_BITS = 16;
+		static final int SLOT_MASK = (1 << SLOT_BITS) - 1;
+		/** High bits of a runtime id: how often its slot was taken. */
+		static final int GENERATION_MASK = (1 << (31 - SLOT_BITS)) - 1;
+
+		static final Registry EMPTY = new Registry(new ScriptCriteria[0], new int[0],
+				new HashMap<ScriptId, ScriptCriteria>());
+
+		/**
+		 * Indexed by the slot of the runtime id; null where a script was
+		 * deleted, until the slot is taken again.
+		 */
+		final ScriptCriteria[] slots;
+
+		/** The generation of the last script in each slot. */
+		private final int[] generations;
+
+		final HashMap<ScriptId, ScriptCriteria> byId;
+
+		private Registry(ScriptCriteria[] slots, int[] generations,
+				HashMap<ScriptId, ScriptCriteria> byId) {
+			this.slots = slots;
+			this.generations = generations;
+			this.byId = byId;
+		}
+
+		ScriptCriteria get(ScriptId id) {
+			return byId.get(id);
+		}
+
+		/**
+		 * @return the script or null if the id is unknown, or stale since
+		 *         its script was deleted and the slot taken again
+		 */
+		ScriptCriteria get(int runtimeId) {
+			int slot = runtimeId & SLOT_MASK;
+			if (runtimeId < 0 || slot >= slots.length) {
+				return null;
+			}
+			ScriptCriteria script = slots[slot];
+			return script != null && script.runtimeId == runtimeId ? script : null;
+		}
+
+		/**
+		 * @return the next version with scripts added, in free slots first,
+		 *         or replacing those with the same ID
+		 */
+		Registry with(ScriptCriteria[] scripts) {
+			return add(this.slots, new HashMap<ScriptId, ScriptCriteria>(this.byId), scripts);
+		}
+
+		/**
+		 * @return the next version holding only the given scripts: those
+		 *         already registered keep their runtime ids, the slots of
+		 *         the others are freed and taken by the new ones, lowest
+		 *         first
+		 */
+		Registry rebuilt(ScriptCriteria[] scripts) {
+			ScriptCriteria[] slots = new ScriptCriteria[this.slots.length];
+			HashMap<ScriptId, ScriptCriteria> byId = new HashMap<ScriptId, ScriptCriteria>();
+			for (ScriptCriteria script : scripts) {
+				ScriptCriteria stored = this.byId.get(script);
+				if (stored != null) {
+					slots[stored.runtimeId & SLOT_MASK] = stored;
+					byId.put(stored, stored);
+				}
+			}
+			return add(slots, byId, scripts);
+		}
+
+		private Registry add(ScriptCriteria[] base, HashMap<ScriptId, ScriptCriteria> byId,
+				ScriptCriteria[] scripts) {
+			ScriptCriteria[] slots = Arrays.copyOf(base, base.length + scripts.length);
+			int[] generations = Arrays.copyOf(this.generations, slots.length);
+			int size = base.length;
+			int free = 0;
+			for (ScriptCriteria script : scripts) {
+				ScriptCriteria stored = byId.get(script);
+				if (stored != null) {
+					if (stored != script) {
+						script.keepRuntimeOf(stored);
+					}
+				} else {
+					while (free < size && slots[free] != null) {
+						free++;
+					}
+					if (free == size && size > SLOT_MASK) {
+						// every runtime id is taken, the script does not run
+						Log.e(TAG, "Too many scripts registered, leaving out " + script);
+						continue;
+					}
+					int slot = free < size ? free : size++;
+					generations[slot] = (generations[slot] + 1) & GENERATION_MASK;
+					script.runtimeId = generations[slot] << SLOT_BITS | slot;
+					script.register();
+				}
+				slots[script.runtimeId & SLOT_MASK] = script;
+				byId.put(script, script);
+			}
+			if (size < slots.length) {
+				slots = Arrays.copyOf(slots, size);
+				generations = Arrays.copyOf(generations, size);
+			}
+			return new Registry(slots, generations, byId);
+		}
+
+		/**
+		 * @return the next version without the script of the given ID,
+		 *         freeing its slot
+		 */
+		Registry without(ScriptId id) {
+			ScriptCriteria stored = byId.get(id);
+			if (stored == null) {
+				return this;
+			}
+			ScriptCriteria[] slots = this.slots.clone();
+			slots[stored.runtimeId & SLOT_MASK] = null;
+			HashMap<ScriptId, ScriptCriteria> byId = new HashMap<ScriptId, ScriptCriteria>(this.byId);
+			byId.remove(id);
+			return new Registry(slots, generations, byId);
+		}
+	}
+
+	/**
+	 * Binary file of the criteria of all scripts, loaded with one mapped read
+	 * at startup instead of querying and splitting every pattern list. The
+	 * header holds the generation of the database it was written at.
+	 */
+	static final class RegistrySnapshot {
+
+		private static final int MAGIC = 0x474d5231;
+
+		private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+		/**
+		 * Writes the rows of {@link ScriptDbHelper#SQL_CRITERIA}.
+		 */
+		static void write(File file, long generation, Cursor cursor) throws IOException {
+			DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(file), 16 * 1024));
+			try {
+				output.writeInt(MAGIC);
+				output.writeLong(generation);
+				output.writeInt(cursor.getCount());
+				while (cursor.moveToNext()) {
+					writeString(output, cursor.getString(0));
+					writeString(output, cursor.getString(1));
+					writeStrings(output, cursor.getString(2));
+					output.writeBoolean(cursor.getInt(3) == 1);
+					output.writeLong(cursor.getLong(4));
+					writeString(output, cursor.getString(5));
+					writeStrings(output, cursor.getString(6));
+					output.writeLong(cursor.getLong(7));
+				}
+				output.flush();
+			} finally {
+				output.close();
+			}
+		}
+
+		/**
+		 * @return the criteria or null if the file is missing, damaged or
+		 *         written at another generation
+		 */
+		static ScriptCriteria[] read(File file, long generation) {
+			if (generation < 0 || !file.isFile()) {
+				return null;
+			}
+			long start = System.nanoTime();
+			try {
+				FileInputStream input = new FileInputStream(file);
+				try {
+					FileChannel channel = input.getChannel();
+					ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+					if (buffer.getInt() != MAGIC || buffer.getLong() != generation) {
+						CMN.debug("RegistrySnapshot::stale");
+						return null;
+					}
+					ScriptCriteria[] criteria = new ScriptCriteria[buffer.getInt()];
+					byte[] scratch = new byte[256];
+					for (int i = 0; i < criteria.length; i++) {
+						String name = readString(buffer, scratch);
+						String namespace = readString(buffer, scratch);
+						String[] match = readStrings(buffer, scratch);
+						boolean enabled = buffer.get() != 0;
+						long rights = buffer.getLong();
+						String version = readString(buffer, scratch);
+						String[] connect = readStrings(buffer, scratch);
+						criteria[i] = new ScriptCriteria(name, namespace, version, match,
+								connect, enabled, rights);
+						criteria[i].rowID = buffer.getLong();
+					}
+					CMN.debug("RegistrySnapshot::read", criteria.length, (System.nanoTime() - start) / 1000, "us");
+					return criteria;
+				} finally {
+					input.close();
+				}
+			} catch (IOException e) {
+				Log.e(TAG, "Error reading " + file, e);
+			} catch (RuntimeException e) {
+				// truncated or otherwise damaged
+				Log.e(TAG, "Error reading " + file, e);
+			}
+			return null;
+		}
+
+		private static void writeString(DataOutputStream output, String s) throws IOException {
+			if (s == null) {
+				output.writeInt(-1);
+				return;
+			}
+			byte[] bytes = s.getBytes(UTF_8);
+			output.writeInt(bytes.length);
+			output.write(bytes);
+		}
+
+		/**
+		 * Writes a "\n\0" separated list as the array it is split into.
+		 */
+		private static void writeStrings(DataOutputStream output, String joined) throws IOException {
+			if (joined == null) {
+				output.writeInt(-1);
+				return;
+			}
+			String[] strings = joined.split("\n\0");
+			output.writeInt(strings.length);
+			for (String s : strings) {
+				writeString(output, s);
+			}
+		}
+
+		private static String readString(ByteBuffer buffer, byte[] scratch) {
+			int length = buffer.getInt();
+			if (length < 0) {
+				return null;
+			}
+			byte[] bytes = length <= scratch.length ? scratch : new byte[length];
+			buffer.get(bytes, 0, length);
+			return new String(bytes, 0, length, UTF_8);
+		}
+
+		private static String[] readStrings(ByteBuffer buffer, byte[] scratch) {
+			int length = buffer.getInt();
+			if (length < 0) {
+				return null;
+			}
+			String[] strings = new String[length];
+			for (int i = 0; i < length; i++) {
+				strings[i] = readString(buffer, scratch);
+			}
+			return strings;
+		}
 	}
 
 	/**
@@ -1381,4 +3964,925 @@ public class ScriptStoreSQLite /*implements ScriptStore*/ {
 
 	}
 
+	/**
+	 * Write-behind buffer of the values set or deleted by user scripts.
+	 *
+	 * Keeps the latest value per script and name in memory, so that repeated
+	 * writes coalesce, and writes them to the database in a single transaction
+	 * {@link #FLUSH_DELAY} ms after the first change, when a page is left or
+	 * hidden and on close. The changes are also appended to a journal next to
+	 * the database, in batches on the writer thread rather than on the calling
+	 * one, which is replayed on open if the process was killed before the
+	 * buffer got flushed. What was not journaled yet at a kill is lost.
+	 */
+	static final class ValueBuffer {
+		/** Marks a name whose value was deleted. Compared by identity. */
+		static final String DELETED = new String("\0deleted");
+
+		private static final int FLUSH_DELAY = 1000;
+
+		/** Journals longer than this are rewritten after a flush. */
+		private static final int MAX_JOURNAL = 256 * 1024;
+
+		private static final byte OP_SET = 1;
+		private static final byte OP_DELETE = 2;
+		private static final byte OP_DROP = 3;
+
+		private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+		private final ScriptStoreSQLite store;
+
+		private final File journalFile;
+
+		private HashMap<ScriptId, HashMap<String, String>> pending = new HashMap<ScriptId, HashMap<String, String>>();
+
+		/** The values being written by {@link #flush}, still seen by {@link #overlay}. */
+		private HashMap<ScriptId, HashMap<String, String>> flushing;
+
+		/** Written and closed on the writer thread only. */
+		private DataOutputStream journal;
+
+		private long journalLength;
+
+		/** Changes waiting for {@link #journalTask}: op, id, name, value. */
+		private ArrayList<Object[]> unjournaled = new ArrayList<Object[]>();
+
+		private boolean scheduled;
+
+		private boolean journalScheduled;
+
+		private final Object flushLock = new Object();
+
+		private final Runnable flushTask = new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		};
+
+		private final Runnable journalTask = new Runnable() {
+			@Override
+			public void run() {
+				journal();
+			}
+		};
+
+		ValueBuffer(ScriptStoreSQLite store, File journalFile) {
+			this.store = store;
+			this.journalFile = journalFile;
+		}
+
+		/**
+		 * Writes what the journal of a previous process holds to the database
+		 * and removes the journal. Called on open, before the store publishes
+		 * dbHelper.
+		 */
+		void replay(ScriptDbHelper dbHelper) {
+			if (!journalFile.exists()) {
+				return;
+			}
+			HashMap<ScriptId, HashMap<String, String>> values = new HashMap<ScriptId, HashMap<String, String>>();
+			DataInputStream in = null;
+			try {
+				in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+				while (true) {
+					byte op = in.readByte();
+					String scriptName = readString(in);
+					ScriptId id = new ScriptId(scriptName, readString(in));
+					if (op == OP_DROP) {
+						values.remove(id);
+						continue;
+					}
+					String name = readString(in);
+					put(values, id, name, op == OP_SET ? readString(in) : DELETED);
+				}
+			} catch (EOFException ignored) {
+				// end of the journal, or a record cut short by the kill
+			} catch (IOException e) {
+				Log.e(TAG, "Error reading value journal " + journalFile);
+			} finally {
+				closeQuietly(in);
+			}
+			CMN.debug("replaying values::", values.size());
+			if (!values.isEmpty()) {
+				dbHelper.writeValues(values);
+			}
+			if (!journalFile.delete()) {
+				Log.e(TAG, "Error deleting value journal " + journalFile);
+			}
+		}
+
+		/**
+		 * Buffers a value of a script.
+		 *
+		 * @param value
+		 *            the new value or {@link #DELETED}
+		 */
+		synchronized void put(ScriptId id, String name, String value) {
+			putAll(id, Collections.singletonMap(name, value));
+		}
+
+		/**
+		 * Buffers a batch of values of a script.
+		 *
+		 * @param values
+		 *            the new values per name, {@link #DELETED} to delete one
+		 */
+		synchronized void putAll(ScriptId id, Map<String, String> values) {
+			id = new ScriptId(id.getName(), id.getNamespace());
+			for (Map.Entry<String, String> entry : values.entrySet()) {
+				String value = entry.getValue();
+				put(pending, id, entry.getKey(), value);
+				unjournaled.add(new Object[] { value == DELETED ? OP_DELETE : OP_SET, id,
+						entry.getKey(), value });
+			}
+			ScheduledExecutorService writer = store.writer;
+			if (writer == null) {
+				return;
+			}
+			if (!journalScheduled) {
+				journalScheduled = true;
+				writer.execute(journalTask);
+			}
+			if (!scheduled) {
+				scheduled = true;
+				writer.schedule(flushTask, FLUSH_DELAY, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		/**
+		 * Forgets the buffered values of a script that is being deleted.
+		 */
+		synchronized void drop(ScriptId id) {
+			if (pending.remove(id) == null) {
+				return;
+			}
+			unjournaled.add(new Object[] { OP_DROP, id, null, null });
+			ScheduledExecutorService writer = store.writer;
+			if (!journalScheduled && writer != null) {
+				journalScheduled = true;
+				writer.execute(journalTask);
+			}
+		}
+
+		/**
+		 * Appends the changes buffered since the last call to the journal, on
+		 * the writer thread.
+		 */
+		void journal() {
+			ArrayList<Object[]> records;
+			synchronized (this) {
+				journalScheduled = false;
+				if (unjournaled.isEmpty()) {
+					return;
+				}
+				records = unjournaled;
+				unjournaled = new ArrayList<Object[]>();
+			}
+			try {
+				DataOutputStream journal = openJournal();
+				for (Object[] record : records) {
+					byte op = (Byte) record[0];
+					ScriptId id = (ScriptId) record[1];
+					journal.writeByte(op);
+					writeString(journal, id.getName());
+					writeString(journal, id.getNamespace());
+					if (op != OP_DROP) {
+						writeString(journal, (String) record[2]);
+					}
+					if (op == OP_SET) {
+						writeString(journal, (String) record[3]);
+					}
+				}
+				journal.flush();
+			} catch (IOException e) {
+				Log.e(TAG, "Error appending to value journal " + journalFile);
+			}
+		}
+
+		/**
+		 * Applies the buffered changes of a script to its values as read from
+		 * the database.
+		 */
+		synchronized void overlay(ScriptId id, Map<String, String> values) {
+			if (flushing != null) {
+				overlay(flushing.get(id), values);
+			}
+			overlay(pending.get(id), values);
+		}
+
+		/**
+		 * Schedules a flush right away.
+		 */
+		void flushSoon() {
+			ScheduledExecutorService writer = store.writer;
+			synchronized (this) {
+				if (pending.isEmpty() || writer == null) {
+					return;
+				}
+				scheduled = true;
+			}
+			writer.execute(flushTask);
+		}
+
+		/**
+		 * Writes the buffered values to the database in a single transaction.
+		 * Blocks until a flush already under way is done.
+		 */
+		void flush() {
+			synchronized (flushLock) {
+				HashMap<ScriptId, HashMap<String, String>> values;
+				synchronized (this) {
+					scheduled = false;
+					if (pending.isEmpty()) {
+						return;
+					}
+					values = flushing = pending;
+					pending = new HashMap<ScriptId, HashMap<String, String>>();
+					// written with the values now
+					unjournaled.clear();
+				}
+				boolean written = false;
+				try {
+					store.dbHelper.writeValues(values);
+					written = true;
+				} catch (Exception e) {
+					Log.e(TAG, "Error flushing " + values.size() + " scripts' values");
+					CMN.debug(e);
+				}
+				synchronized (this) {
+					flushing = null;
+					if (!written) {
+						// keep what failed unless it was overwritten since
+						for (Map.Entry<ScriptId, HashMap<String, String>> script : values.entrySet()) {
+							for (Map.Entry<String, String> entry : script.getValue().entrySet()) {
+								if (get(pending, script.getKey(), entry.getKey()) == null) {
+									String value = entry.getValue();
+									put(pending, script.getKey(), entry.getKey(), value);
+									unjournaled.add(new Object[] { value == DELETED ? OP_DELETE : OP_SET,
+											script.getKey(), entry.getKey(), value });
+								}
+							}
+						}
+					} else if (pending.isEmpty()) {
+						closeJournal();
+						journalFile.delete();
+					} else if (journalLength > MAX_JOURNAL) {
+						rewriteJournal();
+					}
+				}
+			}
+		}
+
+		/**
+		 * Flushes the buffer and closes the journal. Called on close.
+		 */
+		void close() {
+			flush();
+			journal();
+			synchronized (this) {
+				closeJournal();
+			}
+		}
+
+		private DataOutputStream openJournal() throws IOException {
+			if (journal == null) {
+				journal = new DataOutputStream(new BufferedOutputStream(
+						new FileOutputStream(journalFile, true)));
+				journalLength = journalFile.length();
+			}
+			return journal;
+		}
+
+		private void closeJournal() {
+			if (journal != null) {
+				closeQuietly(journal);
+				journal = null;
+			}
+		}
+
+		/**
+		 * Replaces the journal by one holding only what is still pending.
+		 */
+		private void rewriteJournal() {
+			closeJournal();
+			journalFile.delete();
+			HashMap<ScriptId, HashMap<String, String>> values = pending;
+			unjournaled.clear();
+			try {
+				DataOutputStream journal = openJournal();
+				for (Map.Entry<ScriptId, HashMap<String, String>> script : values.entrySet()) {
+					ScriptId id = script.getKey();
+					for (Map.Entry<String, String> entry : script.getValue().entrySet()) {
+						String value = entry.getValue();
+						journal.writeByte(value == DELETED ? OP_DELETE : OP_SET);
+						writeString(journal, id.getName());
+						writeString(journal, id.getNamespace());
+						writeString(journal, entry.getKey());
+						if (value != DELETED) {
+							writeString(journal, value);
+						}
+					}
+				}
+				journal.flush();
+			} catch (IOException e) {
+				Log.e(TAG, "Error rewriting value journal " + journalFile);
+			}
+		}
+
+		private void writeString(DataOutputStream out, String s) throws IOException {
+			byte[] bytes = s.getBytes(UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+			journalLength += 4 + bytes.length;
+		}
+
+		private static String readString(DataInputStream in) throws IOException {
+			int length = in.readInt();
+			if (length < 0 || length > 64 * 1024 * 1024) {
+				throw new IOException("Corrupt value journal");
+			}
+			byte[] bytes = new byte[length];
+			in.readFully(bytes);
+			return new String(bytes, UTF_8);
+		}
+
+		private static void put(Map<ScriptId, HashMap<String, String>> values,
+				ScriptId id, String name, String value) {
+			HashMap<String, String> scriptValues = values.get(id);
+			if (scriptValues == null) {
+				values.put(id, scriptValues = new HashMap<String, String>());
+			}
+			scriptValues.put(name, value);
+		}
+
+		private static String get(Map<ScriptId, HashMap<String, String>> values,
+				ScriptId id, String name) {
+			HashMap<String, String> scriptValues = values.get(id);
+			return scriptValues == null ? null : scriptValues.get(name);
+		}
+
+		private static void overlay(Map<String, String> changes,
+				Map<String, String> values) {
+			if (changes == null) {
+				return;
+			}
+			for (Map.Entry<String, String> entry : changes.entrySet()) {
+				if (entry.getValue() == DELETED) {
+					values.remove(entry.getKey());
+				} else {
+					values.put(entry.getKey(), entry.getValue());
+				}
+			}
+		}
+
+		private static void closeQuietly(Closeable closeable) {
+			if (closeable != null) {
+				try {
+					closeable.close();
+				} catch (IOException ignored) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Read-through cache of the values of user scripts.
+	 *
+	 * The values of a script are loaded with a single query on first access,
+	 * overlaid with what the {@link ValueBuffer} has not written yet, and kept
+	 * coherent with every change made through the store. Whole scripts are
+	 * evicted least recently used first once the cached values exceed
+	 * {@link #MAX_BYTES}.
+	 *
+	 * Every change increases the value version of its script, which tells
+	 * snapshots shipped to pages whether they are stale.
+	 */
+	private static class ValueCache {
+		private static final long MAX_BYTES = 4 * 1024 * 1024;
+
+		/** Scripts with more values than this get no snapshot. */
+		private static final long MAX_SNAPSHOT_BYTES = 256 * 1024;
+
+		/** Estimated cost of a map entry on top of its strings. */
+		private static final int ENTRY_BYTES = 48;
+
+		private final ScriptStoreSQLite store;
+
+		private final LinkedHashMap<ScriptId, ScriptValues> scripts = new LinkedHashMap<ScriptId, ScriptValues>(
+				16, 0.75f, true);
+
+		/**
+		 * Versions of the cached scripts' values, dropped with them. Drawn from
+		 * one counter so a script loaded again never repeats a version a page
+		 * may still hold.
+		 */
+		private final HashMap<ScriptId, Integer> versions = new HashMap<ScriptId, Integer>();
+
+		private int clock;
+
+		private long bytes;
+
+		private int hits;
+
+		private int loads;
+
+		ValueCache(ScriptStoreSQLite store) {
+			this.store = store;
+		}
+
+		synchronized String get(ScriptId id, String name) {
+			return values(id).map.get(name);
+		}
+
+		synchronized String[] getNames(ScriptId id) {
+			HashMap<String, String> map = values(id).map;
+			return map.keySet().toArray(new String[map.size()]);
+		}
+
+		/**
+		 * Changes a value of a script and buffers the change for the database.
+		 *
+		 * @param value
+		 *            the new value or {@link ValueBuffer#DELETED}
+		 */
+		synchronized void put(ScriptId id, String name, String value, WebView source) {
+			putAll(id, Collections.singletonMap(name, value), source);
+		}
+
+		/**
+		 * Changes a batch of values of a script and buffers the changes for
+		 * the database. The version of the script's values increases once.
+		 *
+		 * @param changes
+		 *            the new values per name, {@link ValueBuffer#DELETED} to
+		 *            delete one
+		 * @param source
+		 *            the view whose script made the changes (may be null)
+		 */
+		synchronized void putAll(ScriptId id, Map<String, String> changes, WebView source) {
+			if (changes.isEmpty()) {
+				return;
+			}
+			ValueChangeBus bus = store.valueChangeBus;
+			// listeners want the old values, so load them before the change
+			boolean listened = bus.isListened(id);
+			if (listened) {
+				values(id);
+			}
+			store.valueBuffer.putAll(id, changes);
+			ScriptValues values = scripts.get(id);
+			if (values == null) {
+				return;
+			}
+			versions.put(id, ++clock);
+			for (Map.Entry<String, String> entry : changes.entrySet()) {
+				String name = entry.getKey();
+				String value = entry.getValue();
+				String old = value == ValueBuffer.DELETED ? values.map.remove(name)
+						: values.map.put(name, value);
+				long delta = (value == ValueBuffer.DELETED ? 0 : size(name, value))
+						- (old == null ? 0 : size(name, old));
+				values.bytes += delta;
+				bytes += delta;
+				if (listened) {
+					bus.onChanged(id, name, old, value == ValueBuffer.DELETED ? null : value, source);
+				}
+			}
+			trim(values);
+		}
+
+		/**
+		 * @return the values of names that are set
+		 */
+		synchronized HashMap<String, String> getAll(ScriptId id, String[] names) {
+			HashMap<String, String> map = values(id).map;
+			HashMap<String, String> ret = new HashMap<String, String>();
+			for (String name : names) {
+				String value = map.get(name);
+				if (value != null) {
+					ret.put(name, value);
+				}
+			}
+			return ret;
+		}
+
+		/**
+		 * Forgets the values of a script that is being deleted.
+		 */
+		synchronized void drop(ScriptId id) {
+			store.valueBuffer.drop(id);
+			versions.remove(id);
+			ScriptValues values = scripts.remove(id);
+			if (values != null) {
+				bytes -= values.bytes;
+			}
+		}
+
+		synchronized boolean snapshot(ScriptId id, StringBuilder out) {
+			ScriptValues values = values(id);
+			if (values.bytes > MAX_SNAPSHOT_BYTES) {
+				return false;
+			}
+			out.append("{\"v\":").append(version(id)).append(",\"d\":{");
+			boolean first = true;
+			for (Map.Entry<String, String> entry : values.map.entrySet()) {
+				if (!first) {
+					out.append(',');
+				}
+				first = false;
+				out.append(JSONObject.quote(entry.getKey())).append(':')
+						.append(JSONObject.quote(entry.getValue()));
+			}
+			out.append("}}");
+			return true;
+		}
+
+		synchronized String apply(ScriptId id, int baseVersion, Map<String, String> changes,
+				WebView source) {
+			boolean stale = version(id) != baseVersion;
+			putAll(id, changes, source);
+			if (!stale) {
+				return Integer.toString(version(id));
+			}
+			StringBuilder out = new StringBuilder();
+			if (!snapshot(id, out)) {
+				// grew too large, the page falls back to the bridge
+				return "{}";
+			}
+			return out.toString();
+		}
+
+		/**
+		 * @return the version of the cached values, -1 if not cached
+		 */
+		private int version(ScriptId id) {
+			Integer version = versions.get(id);
+			return version == null ? -1 : version;
+		}
+
+		private ScriptValues values(ScriptId id) {
+			ScriptValues values = scripts.get(id);
+			if (values != null) {
+				hits++;
+				return values;
+			}
+			loads++;
+			values = new ScriptValues();
+			// no flush may complete between reading the database and the overlay
+			synchronized (store.valueBuffer) {
+				values.map = store.dbHelper.selectValues(id);
+				store.valueBuffer.overlay(id, values.map);
+			}
+			for (Map.Entry<String, String> entry : values.map.entrySet()) {
+				values.bytes += size(entry.getKey(), entry.getValue());
+			}
+			ScriptId key = new ScriptId(id.getName(), id.getNamespace());
+			scripts.put(key, values);
+			versions.put(key, ++clock);
+			bytes += values.bytes;
+			trim(values);
+			return values;
+		}
+
+		/**
+		 * Evicts the least recently used scripts other than the current one.
+		 */
+		private void trim(ScriptValues current) {
+			Iterator<Map.Entry<ScriptId, ScriptValues>> iterator = scripts.entrySet().iterator();
+			while (bytes > MAX_BYTES && iterator.hasNext()) {
+				Map.Entry<ScriptId, ScriptValues> entry = iterator.next();
+				ScriptValues values = entry.getValue();
+				if (values != current) {
+					versions.remove(entry.getKey());
+					iterator.remove();
+					bytes -= values.bytes;
+				}
+			}
+		}
+
+		private static long size(String name, String value) {
+			return ENTRY_BYTES + 2L * (name.length() + value.length());
+		}
+
+		synchronized String getStats() {
+			return "scripts=" + scripts.size() + " bytes=" + bytes + " hits="
+					+ hits + " loads=" + loads;
+		}
+
+		private static class ScriptValues {
+			HashMap<String, String> map;
+			long bytes;
+		}
+	}
+
+	/**
+	 * Decoded texts of @resource'd data, for scripts that read the same CSS
+	 * or template on every page. Entries are looked up by script and
+	 * resource name and record the content hash they were decoded from;
+	 * updating or deleting a script drops its entries. The least recently
+	 * used are evicted once the texts exceed {@link #MAX_CHARS} in total.
+	 * Texts read in chunks are pinned for the duration of the read, larger
+	 * ones included.
+	 */
+	private static class ResourceTextCache {
+		private static final long MAX_CHARS = 2 * 1024 * 1024;
+
+		/** Pinned texts beyond this many evict the oldest pin. */
+		private static final int MAX_PINS = 4;
+
+		private final LinkedHashMap<TextKey, String> texts = new LinkedHashMap<TextKey, String>(
+				16, 0.75f, true);
+
+		private long chars;
+
+		/** Texts being read in chunks, with the number of reads under way. */
+		private final LinkedHashMap<TextKey, Pin> pins = new LinkedHashMap<TextKey, Pin>() {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<TextKey, Pin> eldest) {
+				// a read that never finished, its next chunks decode again
+				return size() > MAX_PINS;
+			}
+		};
+
+		private int hits;
+
+		private int misses;
+
+		synchronized String get(ScriptId script, String name) {
+			TextKey key = new TextKey(script, name);
+			Pin pin = pins.get(key);
+			String text = pin != null ? pin.text : texts.get(key);
+			if (text == null) {
+				misses++;
+				return null;
+			}
+			hits++;
+			return text;
+		}
+
+		synchronized void put(ScriptId script, String name, String text) {
+			TextKey key = new TextKey(script, name);
+			if (text.length() > MAX_CHARS) {
+				// only kept while pinned
+				return;
+			}
+			String old = texts.put(key, text);
+			if (old != null) {
+				chars -= old.length();
+			}
+			chars += text.length();
+			Iterator<String> iter = texts.values().iterator();
+			while (chars > MAX_CHARS && iter.hasNext()) {
+				chars -= iter.next().length();
+				iter.remove();
+			}
+		}
+
+		/**
+		 * Keeps a text until as many {@link #unpin} calls, so that each chunk
+		 * of a read does not decode it again.
+		 */
+		synchronized void pin(ScriptId script, String name, String text) {
+			TextKey key = new TextKey(script, name);
+			Pin pin = pins.get(key);
+			if (pin == null) {
+				pin = new Pin(text);
+				pins.put(key, pin);
+			}
+			pin.refs++;
+		}
+
+		synchronized void unpin(ScriptId script, String name) {
+			TextKey key = new TextKey(script, name);
+			Pin pin = pins.get(key);
+			if (pin != null && --pin.refs <= 0) {
+				pins.remove(key);
+			}
+		}
+
+		synchronized void drop(ScriptId script) {
+			Iterator<Map.Entry<TextKey, String>> iter = texts.entrySet().iterator();
+			while (iter.hasNext()) {
+				Map.Entry<TextKey, String> entry = iter.next();
+				if (entry.getKey().script.equals(script)) {
+					chars -= entry.getValue().length();
+					iter.remove();
+				}
+			}
+			Iterator<TextKey> pinned = pins.keySet().iterator();
+			while (pinned.hasNext()) {
+				if (pinned.next().script.equals(script)) {
+					pinned.remove();
+				}
+			}
+		}
+
+		synchronized String getStats() {
+			int lookups = hits + misses;
+			return "entries=" + texts.size() + " chars=" + chars + " pins=" + pins.size() + " hits=" + hits
+					+ " misses=" + misses + " hitRate="
+					+ (lookups == 0 ? 0 : hits * 100 / lookups) + "%";
+		}
+
+		private static class Pin {
+			final String text;
+			int refs;
+
+			Pin(String text) {
+				this.text = text;
+			}
+		}
+
+		private static class TextKey {
+			final ScriptId script;
+			final String name;
+
+			TextKey(ScriptId script, String name) {
+				// not the criteria, which stay registered while cached
+				this.script = new ScriptId(script.getName(), script.getNamespace());
+				this.name = name;
+			}
+
+			@Override
+			public boolean equals(Object o) {
+				if (!(o instanceof TextKey)) {
+					return false;
+				}
+				TextKey that = (TextKey) o;
+				return script.equals(that.script) && name.equals(that.name);
+			}
+
+			@Override
+			public int hashCode() {
+				return script.hashCode() * 31 + name.hashCode();
+			}
+		}
+	}
+
+	/**
+	 * Delivers changes of values to the pages that subscribed to them through
+	 * GM_addValueChangeListener, including pages in other views.
+	 *
+	 * Changes are coalesced per view, script and name for {@link #DELAY} ms
+	 * and then delivered to each view in a single evaluateJavascript call.
+	 * Each script receives them through a dispatcher the prelude defines under
+	 * a random name drawn here, together with its secret, so a page can
+	 * neither pre-seed the dispatcher nor feed it changes.
+	 */
+	private static class ValueChangeBus implements Runnable {
+		private static final int DELAY = 50;
+
+		private final Handler handler = new Handler(Looper.getMainLooper());
+
+		private final WeakHashMap<WebView, HashMap<ScriptId, Subscription>> subscriptions = new WeakHashMap<WebView, HashMap<ScriptId, Subscription>>();
+
+		private final WeakHashMap<WebView, LinkedHashMap<String, Change>> pending = new WeakHashMap<WebView, LinkedHashMap<String, Change>>();
+
+		private boolean scheduled;
+
+		/**
+		 * @return the channel the changes are delivered to
+		 */
+		synchronized String subscribe(WebView view, ScriptCriteria script, String name) {
+			HashMap<ScriptId, Subscription> scripts = subscriptions.get(view);
+			if (scripts == null) {
+				subscriptions.put(view, scripts = new HashMap<ScriptId, Subscription>());
+			}
+			Subscription subscription = scripts.get(script);
+			if (subscription == null) {
+				subscription = new Subscription(script.secret);
+				scripts.put(new ScriptId(script.getName(), script.getNamespace()), subscription);
+			}
+			subscription.names.add(name);
+			return subscription.channel;
+		}
+
+		synchronized void unsubscribe(WebView view, ScriptId script, String name) {
+			HashMap<ScriptId, Subscription> scripts = subscriptions.get(view);
+			Subscription subscription = scripts == null ? null : scripts.get(script);
+			if (subscription != null && subscription.names.remove(name)
+					&& subscription.names.isEmpty()) {
+				scripts.remove(script);
+			}
+		}
+
+		synchronized void clear(WebView view) {
+			subscriptions.remove(view);
+			pending.remove(view);
+		}
+
+		/**
+		 * @return true if any view listens for a value of the script
+		 */
+		synchronized boolean isListened(ScriptId id) {
+			for (HashMap<ScriptId, Subscription> scripts : subscriptions.values()) {
+				if (scripts.containsKey(id)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Queues a change for every view listening for it.
+		 *
+		 * @param old
+		 *            the previous value or null
+		 * @param value
+		 *            the new value or null if deleted
+		 */
+		synchronized void onChanged(ScriptId id, String name, String old, String value,
+				WebView source) {
+			for (Map.Entry<WebView, HashMap<ScriptId, Subscription>> entry : subscriptions.entrySet()) {
+				Subscription subscription = entry.getValue().get(id);
+				WebView view = entry.getKey();
+				if (view == null || subscription == null || !subscription.names.contains(name)) {
+					continue;
+				}
+				LinkedHashMap<String, Change> changes = pending.get(view);
+				if (changes == null) {
+					pending.put(view, changes = new LinkedHashMap<String, Change>());
+				}
+				String key = subscription.channel + "\n" + name;
+				Change change = changes.get(key);
+				if (change == null) {
+					changes.put(key, change = new Change(subscription, name, old));
+				}
+				change.value = value;
+				change.remote |= view != source;
+			}
+			if (!scheduled && !pending.isEmpty()) {
+				scheduled = true;
+				handler.postDelayed(this, DELAY);
+			}
+		}
+
+		@Override
+		public void run() {
+			HashMap<WebView, LinkedHashMap<String, Change>> batches;
+			synchronized (this) {
+				scheduled = false;
+				batches = new HashMap<WebView, LinkedHashMap<String, Change>>(pending);
+				pending.clear();
+			}
+			StringBuilder sb = new StringBuilder();
+			for (Map.Entry<WebView, LinkedHashMap<String, Change>> batch : batches.entrySet()) {
+				sb.setLength(0);
+				Subscription current = null;
+				for (Change change : batch.getValue().values()) {
+					if (change.subscription != current) {
+						if (current != null) {
+							sb.append("]);");
+						}
+						current = change.subscription;
+						sb.append("window.").append(current.channel).append("&&")
+								.append(current.channel).append("(\"")
+								.append(current.secret).append("\",[");
+					} else {
+						sb.append(',');
+					}
+					sb.append('[').append(JSONObject.quote(change.name))
+							.append(',').append(change.old == null ? "null" : JSONObject.quote(change.old))
+							.append(',').append(change.value == null ? "null" : JSONObject.quote(change.value))
+							.append(',').append(change.remote).append(']');
+				}
+				if (current == null) {
+					continue;
+				}
+				sb.append("])");
+				if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+					batch.getKey().evaluateJavascript(sb.toString(), null);
+				} else {
+					batch.getKey().loadUrl("javascript:" + sb);
+				}
+			}
+		}
+
+		private static class Subscription {
+			/** a valid identifier nobody can guess ahead */
+			final String channel = "GM_vc" + UUID.randomUUID().toString().replace("-", "");
+			final String secret;
+			final HashSet<String> names = new HashSet<String>();
+
+			Subscription(String secret) {
+				this.secret = secret;
+			}
+		}
+
+		private static class Change {
+			final Subscription subscription;
+			final String name;
+			final String old;
+			String value;
+			boolean remote;
+
+			Change(Subscription subscription, String name, String old) {
+				this.subscription = subscription;
+				this.name = name;
+				this.old = old;
+			}
+		}
+	}
+
 }
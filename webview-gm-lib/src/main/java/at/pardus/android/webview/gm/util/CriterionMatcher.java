@@ -16,6 +16,9 @@
 
 package at.pardus.android.webview.gm.util;
 
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
 import at.pardus.android.webview.gm.store.CMN;
 
 /**
@@ -55,6 +58,45 @@ public class CriterionMatcher {
 	
 	
 	
+	/**
+	 * Prepares a criterion to be tested against many URLs: lower-cases it
+	 * and compiles it once if it is a regex.
+	 * 
+	 * @return the criterion for {@link #testPrepared}, null if it is an
+	 *         invalid regex
+	 */
+	public static Object prepare(String criterion, boolean match) {
+		criterion = criterion.toLowerCase();
+		if (!match && isRegExp(criterion)) {
+			try {
+				return Pattern.compile(".*" + convertJsRegExp(criterion) + ".*");
+			} catch (PatternSyntaxException e) {
+				CMN.debug(e);
+				return null;
+			}
+		}
+		return criterion;
+	}
+
+	/**
+	 * Tests a URL against a criterion like {@link #test(String, String, boolean)}.
+	 * 
+	 * @param prepared
+	 *            the criterion as returned by {@link #prepare}
+	 * @param url
+	 *            the lower-cased URL to test
+	 */
+	public static boolean testPrepared(Object prepared, String url, boolean match) {
+		if (prepared instanceof Pattern) {
+			return ((Pattern) prepared).matcher(url).matches();
+		}
+		String criterion = (String) prepared;
+		if (criterion.length() == 0) {
+			return true;
+		}
+		return match ? matchPattern(criterion, url) : testGlob(criterion, url);
+	}
+
 	/** https://www.dre.vanderbilt.edu/~schmidt/android/android-4.0/external/chromium/chrome/common/extensions/docs/match_patterns.html */
 	public static boolean matchPattern(String pattern, String url) {
 		int schemaIdx_pattern = pattern.indexOf("://");
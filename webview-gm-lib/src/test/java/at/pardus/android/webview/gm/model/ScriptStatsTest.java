@@ -0,0 +1,81 @@
+package at.pardus.android.webview.gm.model;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ScriptStatsTest {
+
+	@Test
+	public void bucketsByExclusiveUpperBound() {
+		ScriptStats stats = new ScriptStats();
+		long[] times = { 0, 3, 4, 15, 16, 49, 50, 99, 100, 249, 250, 999, 1000, 60000 };
+		for (long time : times) {
+			stats.addRun(time, false);
+		}
+		assertArrayEquals(new int[] { 2, 2, 2, 2, 2, 2, 2 }, stats.getHistogram());
+		assertEquals(times.length, stats.getRuns());
+		assertEquals(60000, stats.getMaxTime());
+	}
+
+	@Test
+	public void countsLongTasksFromTheThreshold() {
+		ScriptStats stats = new ScriptStats();
+		stats.addRun(ScriptStats.LONG_TASK - 1, false);
+		stats.addRun(ScriptStats.LONG_TASK, true);
+		stats.addRun(ScriptStats.LONG_TASK + 1, false);
+		assertEquals(2, stats.getLongTasks());
+		assertEquals(1, stats.getErrors());
+		assertEquals(3 * ScriptStats.LONG_TASK, stats.getTotalTime());
+	}
+
+	@Test
+	public void histogramIsACopy() {
+		ScriptStats stats = new ScriptStats();
+		stats.getHistogram()[0] = 5;
+		assertArrayEquals(new int[ScriptStats.BUCKETS.length + 1], stats.getHistogram());
+	}
+
+	@Test
+	public void blocksRoutinelyNeedsSeveralReports() {
+		ScriptStats stats = new ScriptStats();
+		for (int i = 0; i < 10; i++) {
+			stats.addRun(200, false);
+		}
+		stats.addReport();
+		stats.addReport();
+		assertFalse(stats.blocksRoutinely());
+		stats.addReport();
+		assertTrue(stats.blocksRoutinely());
+	}
+
+	@Test
+	public void blocksRoutinelyNeedsSeveralRuns() {
+		ScriptStats stats = new ScriptStats();
+		for (int i = 0; i < 4; i++) {
+			stats.addRun(200, false);
+			stats.addReport();
+		}
+		assertFalse(stats.blocksRoutinely());
+		stats.addRun(200, false);
+		assertTrue(stats.blocksRoutinely());
+	}
+
+	@Test
+	public void blocksRoutinelyWhenHalfTheRunsAreLong() {
+		ScriptStats stats = new ScriptStats();
+		for (int i = 0; i < 3; i++) {
+			stats.addReport();
+		}
+		for (int i = 0; i < 4; i++) {
+			stats.addRun(ScriptStats.LONG_TASK, false);
+			stats.addRun(1, false);
+		}
+		assertTrue(stats.blocksRoutinely());
+		stats.addRun(1, false);
+		assertFalse(stats.blocksRoutinely());
+	}
+}
@@ -0,0 +1,48 @@
+package at.pardus.android.webview.gm.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class BridgeAuthTest {
+
+	@Test
+	public void parsesNonNegativeDecimalInts() {
+		assertEquals(0, ScriptStoreSQLite.parseRuntimeId("0"));
+		assertEquals(65537, ScriptStoreSQLite.parseRuntimeId("65537"));
+		assertEquals(7, ScriptStoreSQLite.parseRuntimeId("007"));
+		assertEquals(Integer.MAX_VALUE, ScriptStoreSQLite.parseRuntimeId("2147483647"));
+	}
+
+	@Test
+	public void rejectsAnythingElse() {
+		assertEquals(-1, ScriptStoreSQLite.parseRuntimeId(null));
+		assertEquals(-1, ScriptStoreSQLite.parseRuntimeId(""));
+		assertEquals(-1, ScriptStoreSQLite.parseRuntimeId("-1"));
+		assertEquals(-1, ScriptStoreSQLite.parseRuntimeId("+1"));
+		assertEquals(-1, ScriptStoreSQLite.parseRuntimeId(" 1"));
+		assertEquals(-1, ScriptStoreSQLite.parseRuntimeId("1.0"));
+		assertEquals(-1, ScriptStoreSQLite.parseRuntimeId("0x10"));
+		assertEquals(-1, ScriptStoreSQLite.parseRuntimeId("undefined"));
+		assertEquals(-1, ScriptStoreSQLite.parseRuntimeId("\u0661"));
+		assertEquals(-1, ScriptStoreSQLite.parseRuntimeId("2147483648"));
+		assertEquals(-1, ScriptStoreSQLite.parseRuntimeId("9999999999"));
+		assertEquals(-1, ScriptStoreSQLite.parseRuntimeId("00000000001"));
+	}
+
+	@Test
+	public void comparesSecrets() {
+		String secret = "0f8fad5b-d9cb-469f-a165-70867728950e";
+		assertTrue(ScriptStoreSQLite.secretEquals(secret, new String(secret)));
+		assertFalse(ScriptStoreSQLite.secretEquals(secret, "1f8fad5b-d9cb-469f-a165-70867728950e"));
+		assertFalse(ScriptStoreSQLite.secretEquals(secret, "0f8fad5b-d9cb-469f-a165-70867728950f"));
+		assertFalse(ScriptStoreSQLite.secretEquals(secret, secret.substring(1)));
+		assertFalse(ScriptStoreSQLite.secretEquals(secret, secret + "0"));
+		assertFalse(ScriptStoreSQLite.secretEquals(secret, ""));
+		assertFalse(ScriptStoreSQLite.secretEquals(secret, null));
+		assertFalse(ScriptStoreSQLite.secretEquals(null, secret));
+		assertFalse(ScriptStoreSQLite.secretEquals(null, null));
+	}
+}
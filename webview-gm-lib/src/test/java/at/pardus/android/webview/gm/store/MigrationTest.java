@@ -0,0 +1,166 @@
+package at.pardus.android.webview.gm.store;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+
+import android.app.Activity;
+import android.database.sqlite.SQLiteDatabase;
+
+import at.pardus.android.webview.gm.model.Script;
+import at.pardus.android.webview.gm.model.ScriptCriteria;
+import at.pardus.android.webview.gm.model.ScriptId;
+import at.pardus.android.webview.gm.model.ScriptRequire;
+import at.pardus.android.webview.gm.model.ScriptResource;
+import at.pardus.android.webview.gm.store.ScriptStoreSQLite.ScriptDbHelper;
+
+/**
+ * Upgrades a database of version 12, keyed by script name and namespace,
+ * through every step to the current schema.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class MigrationTest {
+
+	private static final String DB = "migration-test.db";
+
+	/** The tables of version 12, as its ScriptDbHelper created them. */
+	private static final String[] V12_CREATE = new String[] {
+			"CREATE TABLE script (name TEXT NOT NULL, namespace TEXT NOT NULL, "
+					+ "description TEXT, downloadurl TEXT, updateurl TEXT, installurl TEXT, "
+					+ "icon TEXT, runat TEXT, unwrap INTEGER, version TEXT, "
+					+ "content TEXT NOT NULL, enabled INTEGER NOT NULL DEFAULT 1, "
+					+ "rights INTEGER NOT NULL DEFAULT 0, time INTEGER NOT NULL DEFAULT 0, "
+					+ "exts INTEGER NOT NULL DEFAULT 0, name_loc TEXT, "
+					+ "PRIMARY KEY (name, namespace));",
+			"CREATE TABLE script_has_match (name TEXT NOT NULL, namespace TEXT NOT NULL, "
+					+ "patterns TEXT NOT NULL, enabled INTEGER NOT NULL DEFAULT 1, "
+					+ "rights INTEGER NOT NULL DEFAULT 0, version TEXT, connect TEXT, "
+					+ "usr_connect TEXT, PRIMARY KEY (name, namespace), "
+					+ "FOREIGN KEY (name, namespace) REFERENCES script (name, namespace) "
+					+ "ON UPDATE CASCADE ON DELETE CASCADE);",
+			"CREATE TABLE script_has_require (name TEXT NOT NULL, namespace TEXT NOT NULL, "
+					+ "downloadurl TEXT NOT NULL, content TEXT NOT NULL, "
+					+ "PRIMARY KEY (name, namespace, downloadurl), "
+					+ "FOREIGN KEY (name, namespace) REFERENCES script (name, namespace) "
+					+ "ON UPDATE CASCADE ON DELETE CASCADE);",
+			"CREATE TABLE script_has_resource (name TEXT NOT NULL, namespace TEXT NOT NULL, "
+					+ "resource_name TEXT NOT NULL, downloadurl TEXT NOT NULL, "
+					+ "data BLOB NOT NULL, PRIMARY KEY (name, namespace, resource_name), "
+					+ "FOREIGN KEY (name, namespace) REFERENCES script (name, namespace) "
+					+ "ON UPDATE CASCADE ON DELETE CASCADE);",
+			"CREATE TABLE script_has_value (name TEXT NOT NULL, namespace TEXT NOT NULL, "
+					+ "valuename TEXT NOT NULL, value TEXT NOT NULL, "
+					+ "PRIMARY KEY (name, namespace, valuename), "
+					+ "FOREIGN KEY (name, namespace) REFERENCES script (name, namespace) "
+					+ "ON UPDATE CASCADE ON DELETE CASCADE);" };
+
+	private static final ScriptId A = new ScriptId("a", "test");
+	private static final ScriptId B = new ScriptId("b", "test");
+
+	private static final byte[] DATA = new byte[] { 0, 1, 2, (byte) 0xff };
+
+	private Activity context;
+
+	private ScriptDbHelper helper;
+
+	@Before
+	public void setUp() {
+		context = Robolectric.buildActivity(Activity.class).get();
+		File file = context.getDatabasePath(DB);
+		file.getParentFile().mkdirs();
+		SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(file, null);
+		try {
+			for (String sql : V12_CREATE) {
+				db.execSQL(sql);
+			}
+			for (ScriptId id : new ScriptId[] { A, B }) {
+				db.execSQL("INSERT INTO script (name, namespace, version, content, rights) "
+						+ "VALUES (?, ?, '1.0', ?, 5)", new Object[] { id.getName(),
+						id.getNamespace(), "code " + id.getName() });
+				db.execSQL("INSERT INTO script_has_match (name, namespace, patterns, rights, "
+						+ "version, connect) VALUES (?, ?, ?, 5, '1.0', ?)", new Object[] {
+						id.getName(), id.getNamespace(), "*://example.com/*\n\0*://example.org/*\n\0",
+						"example.com\n\0" });
+				// the same content under the same URL, stored once after the upgrade
+				db.execSQL("INSERT INTO script_has_require (name, namespace, downloadurl, content) "
+						+ "VALUES (?, ?, 'https://example.com/lib.js', 'var lib;')", new Object[] {
+						id.getName(), id.getNamespace() });
+			}
+			db.execSQL("INSERT INTO script_has_resource (name, namespace, resource_name, "
+					+ "downloadurl, data) VALUES ('a', 'test', 'icon', 'https://example.com/icon', ?)",
+					new Object[] { DATA });
+			db.execSQL("INSERT INTO script_has_value (name, namespace, valuename, value) "
+					+ "VALUES ('a', 'test', 'key', 'value')");
+			db.setVersion(12);
+		} finally {
+			db.close();
+		}
+		helper = new ScriptDbHelper(new ScriptStoreSQLite(context), DB);
+	}
+
+	@After
+	public void tearDown() {
+		helper.close();
+	}
+
+	@Test
+	public void keepsScriptsAndTheirIds() {
+		assertEquals(1, helper.getScriptRowId(A));
+		assertEquals(2, helper.getScriptRowId(B));
+		assertEquals(2, helper.selectScriptCriteria(null, null).length);
+
+		ScriptCriteria criteria = helper.getScriptCriteria(A);
+		assertNotNull(criteria);
+		assertArrayEquals(new String[] { "*://example.com/*", "*://example.org/*" },
+				criteria.getMatch());
+		assertArrayEquals(new String[] { "example.com" }, criteria.connect);
+		assertEquals(5, criteria.rights);
+		assertEquals("1.0", criteria.version);
+		assertTrue(criteria.isEnabled());
+
+		Script script = helper.selectScripts(new ScriptId[] { A }, null, false)[0];
+		assertEquals("code a", script.getContent());
+	}
+
+	@Test
+	public void sharesRequireContent() {
+		Script[] scripts = helper.selectScripts(new ScriptId[] { A, B }, null, false);
+		assertEquals(2, scripts.length);
+		ScriptRequire a = scripts[0].getRequires()[0];
+		ScriptRequire b = scripts[1].getRequires()[0];
+		assertEquals("https://example.com/lib.js", a.getUrl());
+		assertEquals("var lib;", a.getContent());
+		assertEquals(a.getHash(), b.getHash());
+		assertEquals("var lib;", helper.selectRequireText(a.getHash()));
+		assertTrue(helper.isRequireKnown("https://example.com/lib.js"));
+	}
+
+	@Test
+	public void movesResourcesToFiles() {
+		ScriptResource resource = helper.getResource(A, "icon");
+		assertNotNull(resource);
+		assertEquals("https://example.com/icon", resource.getUrl());
+		assertTrue(resource.getFile().isFile());
+		assertArrayEquals(DATA, resource.getData());
+	}
+
+	@Test
+	public void keepsValuesAndCountsGenerations() {
+		assertEquals("value", helper.selectValue(A, "key"));
+		long generation = helper.selectGeneration();
+		assertTrue(generation >= 0);
+		helper.updateScriptEnabled(A, false);
+		assertTrue(helper.selectGeneration() > generation);
+	}
+
+}
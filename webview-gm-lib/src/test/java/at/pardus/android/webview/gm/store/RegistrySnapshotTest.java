@@ -0,0 +1,104 @@
+package at.pardus.android.webview.gm.store;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import android.database.MatrixCursor;
+
+import at.pardus.android.webview.gm.model.ScriptCriteria;
+import at.pardus.android.webview.gm.store.ScriptStoreSQLite.RegistrySnapshot;
+
+@RunWith(RobolectricTestRunner.class)
+public class RegistrySnapshotTest {
+
+	private static final String[] COLUMNS = { "name", "namespace", "patterns",
+			"enabled", "rights", "version", "connect", "id" };
+
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("registry", ".snapshot");
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+	private void write(long generation) throws IOException {
+		MatrixCursor cursor = new MatrixCursor(COLUMNS);
+		cursor.addRow(new Object[] { "a", "ns", "*://example.com/*\n\0-https://example.com/x",
+				1, 3L << 7, "1.0", "example.com", 7L });
+		cursor.addRow(new Object[] { "b é中", "ns", null, 0, 0L, null, null, 8L });
+		RegistrySnapshot.write(file, generation, cursor);
+	}
+
+	@Test
+	public void roundTrips() throws IOException {
+		write(5);
+		ScriptCriteria[] criteria = RegistrySnapshot.read(file, 5);
+		assertNotNull(criteria);
+		assertEquals(2, criteria.length);
+
+		ScriptCriteria a = criteria[0];
+		assertEquals("a", a.getName());
+		assertEquals("ns", a.getNamespace());
+		assertArrayEquals(new String[] { "*://example.com/*", "-https://example.com/x" },
+				a.getMatch());
+		assertTrue(a.isEnabled());
+		assertEquals(3L << 7, a.rights);
+		assertEquals("1.0", a.version);
+		assertArrayEquals(new String[] { "example.com" }, a.connect);
+		assertEquals(7L, a.rowID);
+
+		ScriptCriteria b = criteria[1];
+		assertEquals("b é中", b.getName());
+		assertNull(b.getMatch());
+		assertFalse(b.isEnabled());
+		assertEquals(0L, b.rights);
+		assertNull(b.version);
+		assertNull(b.connect);
+		assertEquals(8L, b.rowID);
+	}
+
+	@Test
+	public void rejectsOtherGenerations() throws IOException {
+		write(5);
+		assertNull(RegistrySnapshot.read(file, 6));
+		assertNull(RegistrySnapshot.read(file, -1));
+	}
+
+	@Test
+	public void rejectsTruncatedFiles() throws IOException {
+		write(5);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(raf.length() - 3);
+		} finally {
+			raf.close();
+		}
+		assertNull(RegistrySnapshot.read(file, 5));
+	}
+
+	@Test
+	public void rejectsMissingFiles() {
+		file.delete();
+		assertNull(RegistrySnapshot.read(file, 5));
+	}
+
+}
@@ -0,0 +1,115 @@
+package at.pardus.android.webview.gm.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import at.pardus.android.webview.gm.model.ScriptCriteria;
+import at.pardus.android.webview.gm.store.ScriptStoreSQLite.Registry;
+
+public class RegistryTest {
+
+	private static ScriptCriteria criteria(String name) {
+		return new ScriptCriteria(name, "test", new String[0]);
+	}
+
+	private static int runtimeId(int generation, int slot) {
+		return generation << Registry.SLOT_BITS | slot;
+	}
+
+	@Test
+	public void encodesGenerationAndSlot() {
+		ScriptCriteria a = criteria("a");
+		ScriptCriteria b = criteria("b");
+		Registry registry = Registry.EMPTY.with(new ScriptCriteria[] { a, b });
+		assertEquals(runtimeId(1, 0), a.runtimeId);
+		assertEquals(runtimeId(1, 1), b.runtimeId);
+		assertSame(a, registry.get(a.runtimeId));
+		assertSame(b, registry.get(b.runtimeId));
+		assertSame(b, registry.get(criteria("b")));
+		assertNotNull(a.secret);
+	}
+
+	@Test
+	public void rejectsUnknownIds() {
+		ScriptCriteria a = criteria("a");
+		Registry registry = Registry.EMPTY.with(new ScriptCriteria[] { a });
+		assertNull(registry.get(-1));
+		assertNull(registry.get(runtimeId(1, 1)));
+		assertNull(registry.get(runtimeId(2, 0)));
+		assertNull(registry.get(Integer.MIN_VALUE));
+	}
+
+	@Test
+	public void reusesAFreedSlotUnderTheNextGeneration() {
+		ScriptCriteria a = criteria("a");
+		ScriptCriteria b = criteria("b");
+		Registry registry = Registry.EMPTY.with(new ScriptCriteria[] { a, b });
+		int stale = a.runtimeId;
+		registry = registry.without(a);
+		assertNull(registry.get(stale));
+		ScriptCriteria c = criteria("c");
+		registry = registry.with(new ScriptCriteria[] { c });
+		assertEquals(runtimeId(2, 0), c.runtimeId);
+		assertNull(registry.get(stale));
+		assertSame(c, registry.get(c.runtimeId));
+		assertEquals(2, registry.slots.length);
+	}
+
+	@Test
+	public void replacementKeepsTheRuntimeFields() {
+		ScriptCriteria a = criteria("a");
+		Registry registry = Registry.EMPTY.with(new ScriptCriteria[] { a });
+		ScriptCriteria updated = criteria("a");
+		registry = registry.with(new ScriptCriteria[] { updated });
+		assertEquals(a.runtimeId, updated.runtimeId);
+		assertEquals(a.secret, updated.secret);
+		assertSame(a.stats, updated.stats);
+		assertSame(updated, registry.get(a.runtimeId));
+		assertEquals(1, registry.byId.size());
+	}
+
+	@Test
+	public void rebuildKeepsSurvivorsAndFillsFreedSlots() {
+		ScriptCriteria a = criteria("a");
+		ScriptCriteria b = criteria("b");
+		ScriptCriteria c = criteria("c");
+		Registry registry = Registry.EMPTY.with(new ScriptCriteria[] { a, b, c });
+		ScriptCriteria d = criteria("d");
+		ScriptCriteria reloaded = criteria("c");
+		registry = registry.rebuilt(new ScriptCriteria[] { reloaded, d });
+		assertEquals(c.runtimeId, reloaded.runtimeId);
+		assertEquals(runtimeId(2, 0), d.runtimeId);
+		assertNull(registry.get(a));
+		assertNull(registry.get(b.runtimeId));
+		assertEquals(2, registry.byId.size());
+	}
+
+	@Test
+	public void generationWrapsWithoutGoingNegative() {
+		Registry registry = Registry.EMPTY;
+		for (int i = 0; i <= Registry.GENERATION_MASK + 1; i++) {
+			ScriptCriteria a = criteria("a");
+			registry = registry.with(new ScriptCriteria[] { a }).without(a);
+			assertTrue(a.runtimeId >= 0);
+			assertEquals(0, a.runtimeId & Registry.SLOT_MASK);
+		}
+	}
+
+	@Test
+	public void leavesOutScriptsPastTheLastSlot() {
+		ScriptCriteria[] scripts = new ScriptCriteria[Registry.SLOT_MASK + 2];
+		for (int i = 0; i < scripts.length; i++) {
+			scripts[i] = criteria("s" + i);
+		}
+		Registry registry = Registry.EMPTY.with(scripts);
+		assertEquals(Registry.SLOT_MASK + 1, registry.byId.size());
+		assertNull(registry.get(scripts[scripts.length - 1]));
+		assertSame(scripts[Registry.SLOT_MASK],
+				registry.get(runtimeId(1, Registry.SLOT_MASK)));
+	}
+}
@@ -0,0 +1,112 @@
+package at.pardus.android.webview.gm.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+
+import android.app.Activity;
+
+import at.pardus.android.webview.gm.model.Script;
+import at.pardus.android.webview.gm.model.ScriptId;
+import at.pardus.android.webview.gm.store.ScriptStoreSQLite.ScriptDbHelper;
+import at.pardus.android.webview.gm.store.ScriptStoreSQLite.ValueBuffer;
+
+/**
+ * Replays value journals left by a process killed before its buffer got
+ * flushed. The store is never opened, so no writer runs and nothing is
+ * flushed: the buffer only reaches the journal through journal().
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ValueJournalTest {
+
+	private static final ScriptId A = new ScriptId("a", "test");
+	private static final ScriptId B = new ScriptId("b", "test");
+
+	private ScriptStoreSQLite store;
+
+	private ScriptDbHelper helper;
+
+	private File journalFile;
+
+	private static Script script(ScriptId id) {
+		return new Script(id.getName(), id.getNamespace(), "1.0", new String[] { "*" },
+				null, null, null, null, null, null, null, false, null, null, true, 0, "");
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		store = new ScriptStoreSQLite(Robolectric.buildActivity(Activity.class).get());
+		helper = new ScriptDbHelper(store, "values-test.db");
+		assertEquals(0, helper.insertScript(script(A), -1));
+		assertEquals(0, helper.insertScript(script(B), -1));
+		journalFile = File.createTempFile("values", ".journal");
+		journalFile.delete();
+	}
+
+	@After
+	public void tearDown() {
+		helper.close();
+		journalFile.delete();
+	}
+
+	@Test
+	public void replaysJournaledChanges() {
+		helper.updateOrInsertValue(A, "gone", "old");
+		ValueBuffer buffer = new ValueBuffer(store, journalFile);
+		buffer.put(A, "x", "1");
+		buffer.put(A, "x", "2");
+		buffer.put(A, "y", "é中");
+		buffer.put(A, "gone", ValueBuffer.DELETED);
+		buffer.put(B, "x", "b");
+		buffer.drop(B);
+		buffer.journal();
+		assertTrue(journalFile.length() > 0);
+		assertNull(helper.selectValue(A, "x"));
+
+		new ValueBuffer(store, journalFile).replay(helper);
+		assertEquals("2", helper.selectValue(A, "x"));
+		assertEquals("é中", helper.selectValue(A, "y"));
+		assertNull(helper.selectValue(A, "gone"));
+		assertNull(helper.selectValue(B, "x"));
+		assertFalse(journalFile.exists());
+	}
+
+	@Test
+	public void stopsAtARecordCutShort() throws IOException {
+		ValueBuffer buffer = new ValueBuffer(store, journalFile);
+		buffer.put(A, "x", "1");
+		buffer.journal();
+		buffer.put(A, "y", "2");
+		buffer.journal();
+		RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+		try {
+			raf.setLength(raf.length() - 1);
+		} finally {
+			raf.close();
+		}
+
+		new ValueBuffer(store, journalFile).replay(helper);
+		assertEquals("1", helper.selectValue(A, "x"));
+		assertNull(helper.selectValue(A, "y"));
+		assertFalse(journalFile.exists());
+	}
+
+	@Test
+	public void ignoresMissingJournals() {
+		new ValueBuffer(store, journalFile).replay(helper);
+		assertNull(helper.selectValue(A, "x"));
+	}
+
+}
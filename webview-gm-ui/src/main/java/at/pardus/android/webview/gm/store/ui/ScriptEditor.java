@@ -97,10 +97,11 @@ public class ScriptEditor {
 											+ activity
 													.getString(R.string.syntax_or_dl_fail),
 									Toast.LENGTH_LONG);
+							openScriptListOnUiThread();
 							return;
 						}
 						if (loadedScript == null) {
-							scriptStore.add(script);
+							scriptStore.addAsync(script);
 							makeToastOnUiThread(
 									activity.getString(R.string.added_new_script) + " "
 											+ script.getName(), Toast.LENGTH_LONG);
@@ -113,19 +114,28 @@ public class ScriptEditor {
 													+ activity
 															.getString(R.string.new_script_id_exists),
 											Toast.LENGTH_LONG);
+									openScriptListOnUiThread();
 									return;
 								}
-								scriptStore.delete(loadedScript);
+								// add first, so that the @require content
+								// linked only by the old name is kept
+								scriptStore.addAsync(script);
+								scriptStore.deleteAsync(loadedScript);
+							} else {
+								scriptStore.addAsync(script);
 							}
-							scriptStore.add(script);
 							makeToastOnUiThread(
 									activity.getString(R.string.edited_script) + " "
 											+ script.getName(), Toast.LENGTH_SHORT);
 						}
 						loadedScript = null;
+						scriptStore.whenWritten(new Runnable() {
+							public void run() {
+								activity.openScriptList();
+							}
+						});
 					}
 				});
-				openScriptListOnUiThread();
 //			}
 //		}.start();
 	}
@@ -78,29 +78,39 @@ public abstract class ScriptManagerActivity extends Activity {
 			openScriptEditor(scriptId);
 			return true;
 		} else if (item.getItemId() == R.id.menu_delete) {
-			scriptStore.delete(scriptId);
-			openScriptList();
-			Toast.makeText(this,
-					getString(R.string.deleted_script) + " " + scriptId,
-					Toast.LENGTH_SHORT).show();
+			scriptStore.deleteAsync(scriptId);
+			onWritten(R.string.deleted_script, scriptId);
 			return true;
 		} else if (item.getItemId() == R.id.menu_disable) {
-			scriptStore.disable(scriptId);
-			openScriptList();
-			Toast.makeText(this,
-					getString(R.string.disabled_script) + " " + scriptId,
-					Toast.LENGTH_SHORT).show();
+			scriptStore.disableAsync(scriptId);
+			onWritten(R.string.disabled_script, scriptId);
 			return true;
 		} else if (item.getItemId() == R.id.menu_enable) {
-			scriptStore.enable(scriptId);
-			openScriptList();
-			Toast.makeText(this,
-					getString(R.string.enabled_script) + " " + scriptId,
-					Toast.LENGTH_SHORT).show();
+			scriptStore.enableAsync(scriptId);
+			onWritten(R.string.enabled_script, scriptId);
 			return true;
 		} else {
 			return super.onContextItemSelected(item);
 		}
 	}
 
+	/**
+	 * Refreshes the list and confirms a change once the store has written it,
+	 * without blocking the UI thread meanwhile.
+	 */
+	private void onWritten(final int message, final ScriptId scriptId) {
+		scriptStore.whenWritten(new Runnable() {
+			@Override
+			public void run() {
+				if (isFinishing()) {
+					return;
+				}
+				openScriptList();
+				Toast.makeText(ScriptManagerActivity.this,
+						getString(message) + " " + scriptId,
+						Toast.LENGTH_SHORT).show();
+			}
+		});
+	}
+
 }